@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import br.com.ctecinf.json.JSONArray;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Execução assíncrona de <i>Query</i>, <i>Count</i> e <i>Update</i>, para
+ * rodar consultas independentes em paralelo.<br>
+ * As tarefas rodam em um executor limitado a 'async_threads' threads
+ * ('connection.properties', padrão 8), com fila limitada. O prazo
+ * (<i>timeout</i>) vira <i>setQueryTimeout</i> das instruções e passa para as
+ * tarefas criadas dentro de outra tarefa. <i>cancel</i> no
+ * <i>CompletableFuture</i> cancela a instrução em execução.
+ *
+ * <pre>
+ * CompletableFuture&lt;JSONArray&gt; data = Async.query("venda", clause);
+ * CompletableFuture&lt;Integer&gt; total = Async.count("venda", clause);
+ * CompletableFuture.allOf(data, total).join();
+ * </pre>
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class Async {
+
+    private static final int QUEUE_PER_THREAD = 32;
+
+    private static final ThreadLocal<Handle> CURRENT = new ThreadLocal();
+
+    private static volatile ThreadPoolExecutor executor;
+    private static volatile ScheduledThreadPoolExecutor timer;
+
+    private Async() {
+    }
+
+    /**
+     * Tarefa executada pelo <i>Async</i>
+     *
+     * @param <T>
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+
+        T call() throws Exception;
+    }
+
+    /**
+     * Executa a tarefa (com o prazo restante da tarefa atual, se houver)
+     *
+     * @param <T>
+     * @param task
+     * @return CompletableFuture
+     */
+    public static <T> CompletableFuture<T> submit(Task<T> task) {
+
+        Handle current = CURRENT.get();
+
+        return Async.submit(task, current == null || current.deadline == 0 ? 0 : Math.max(1, current.deadline - System.currentTimeMillis()));
+    }
+
+    /**
+     * Executa a tarefa com prazo
+     *
+     * @param <T>
+     * @param task
+     * @param timeout Prazo em milissegundos (0 sem prazo)
+     * @return CompletableFuture Termina com <i>TimeoutException</i> se o prazo
+     * esgotar
+     */
+    public static <T> CompletableFuture<T> submit(Task<T> task, long timeout) {
+
+        Handle handle = new Handle(timeout > 0 ? System.currentTimeMillis() + timeout : 0);
+        CompletableFuture<T> future = new CompletableFuture();
+
+        future.whenComplete((result, ex) -> {
+            if (ex != null) {
+                handle.cancel();
+            }
+        });
+
+        try {
+
+            handle.task = Async.getExecutor().submit(() -> {
+
+                if (future.isDone()) {
+                    return;
+                }
+
+                CURRENT.set(handle);
+
+                try {
+                    future.complete(task.call());
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                } finally {
+                    CURRENT.remove();
+                }
+            });
+
+        } catch (RejectedExecutionException | DatabaseException ex) {
+            future.completeExceptionally(ex instanceof DatabaseException ? ex : new DatabaseException("Fila de consultas cheia."));
+            return future;
+        }
+
+        if (timeout > 0) {
+
+            ScheduledFuture<?> expire = Async.getTimer().schedule(() -> {
+                future.completeExceptionally(new TimeoutException("Tempo esgotado (" + timeout + " ms)."));
+            }, timeout, TimeUnit.MILLISECONDS);
+
+            future.whenComplete((result, ex) -> expire.cancel(false));
+        }
+
+        return future;
+    }
+
+    /**
+     * Consulta assíncrona
+     *
+     * @param table
+     * @param clause Filtro ou NULL
+     * @return CompletableFuture
+     */
+    public static CompletableFuture<JSONArray> query(String table, Clause clause) {
+        return Async.submit(() -> {
+            try (Query query = new Query(table, clause)) {
+                return query.getJSONData();
+            }
+        });
+    }
+
+    /**
+     * Contagem assíncrona
+     *
+     * @param table
+     * @param clause Filtro ou NULL
+     * @return CompletableFuture
+     */
+    public static CompletableFuture<Integer> count(String table, Clause clause) {
+        return Async.submit(() -> {
+            try (Count count = new Count(table, clause)) {
+                return count.getTotal();
+            }
+        });
+    }
+
+    /**
+     * Gravação assíncrona
+     *
+     * @param table
+     * @param operation Update.INSERT | Update.UPDATE | Update.DELETE |
+     * Update.UPSERT | Update.PARTIAL
+     * @param data Dados do registro
+     * @return CompletableFuture ID gerado na inclusão
+     */
+    public static CompletableFuture<Long> execute(String table, String operation, LinkedHashMap<String, Object> data) {
+        return Async.submit(() -> {
+            try (Update update = new Update(table)) {
+
+                update.createSQL(operation);
+
+                return update.execute(data);
+            }
+        });
+    }
+
+    /**
+     * Aplica o prazo da tarefa atual na instrução e registra a instrução para
+     * cancelamento (chamado ao criar as instruções)
+     *
+     * @param st
+     * @throws SQLException
+     * @throws DatabaseException Prazo esgotado ou tarefa cancelada
+     */
+    static void prepare(Statement st) throws SQLException, DatabaseException {
+
+        Handle handle = CURRENT.get();
+
+        if (handle == null) {
+            return;
+        }
+
+        if (handle.cancelled) {
+            throw new DatabaseException("Consulta cancelada.");
+        }
+
+        handle.statement = st;
+
+        if (handle.deadline > 0) {
+
+            long remaining = handle.deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                throw new DatabaseException("Tempo esgotado.");
+            }
+
+            st.setQueryTimeout((int) Math.max(1, (remaining + 999) / 1000));
+        }
+    }
+
+    private static ThreadPoolExecutor getExecutor() throws DatabaseException {
+
+        if (executor == null) {
+
+            synchronized (Async.class) {
+
+                if (executor == null) {
+
+                    int threads = Integer.parseInt(Connection.getProperties().getProperty("async_threads", "8").trim());
+                    AtomicInteger count = new AtomicInteger();
+
+                    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue(threads * QUEUE_PER_THREAD), (Runnable r) -> {
+                        Thread thread = new Thread(r, "async-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+                    executor.allowCoreThreadTimeOut(true);
+                }
+            }
+        }
+
+        return executor;
+    }
+
+    private static ScheduledThreadPoolExecutor getTimer() {
+
+        if (timer == null) {
+
+            synchronized (Async.class) {
+
+                if (timer == null) {
+
+                    ScheduledThreadPoolExecutor scheduled = new ScheduledThreadPoolExecutor(1, (Runnable r) -> {
+                        Thread thread = new Thread(r, "async-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+                    scheduled.setRemoveOnCancelPolicy(true);
+                    timer = scheduled;
+                }
+            }
+        }
+
+        return timer;
+    }
+
+    /**
+     * Estado de uma tarefa: prazo, execução e instrução atual
+     */
+    private static final class Handle {
+
+        private final long deadline;
+
+        private volatile Future<?> task;
+        private volatile Statement statement;
+        private volatile boolean cancelled;
+
+        private Handle(long deadline) {
+            this.deadline = deadline;
+        }
+
+        private void cancel() {
+
+            this.cancelled = true;
+
+            Future<?> f = this.task;
+
+            if (f != null) {
+                f.cancel(false);
+            }
+
+            Statement st = this.statement;
+
+            if (st != null) {
+                try {
+                    st.cancel();
+                } catch (SQLException ex) {
+                    // Instrução já terminou ou o driver não cancela
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Leitura do catálogo do banco de dados para gerar os metadados.<br>
+ * Usa uma consulta por conjunto (todas as tabelas de uma vez) para colunas,
+ * chaves primárias e estrangeiras quando o dialeto permite; caso contrário
+ * distribui as tabelas entre várias conexões em paralelo.
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+final class Catalog {
+
+    private static final int MAX_THREADS = 8;
+
+    private static final String FIREBIRD_SEQUENCES = "SELECT RDB$GENERATOR_NAME FROM RDB$GENERATORS WHERE COALESCE(RDB$SYSTEM_FLAG, 0) = 0";
+
+    private static final String FIREBIRD_PRIMARY_KEYS = "SELECT rc.RDB$RELATION_NAME, s.RDB$FIELD_NAME FROM RDB$RELATION_CONSTRAINTS rc JOIN RDB$INDEX_SEGMENTS s ON s.RDB$INDEX_NAME = rc.RDB$INDEX_NAME WHERE rc.RDB$CONSTRAINT_TYPE = 'PRIMARY KEY' ORDER BY rc.RDB$RELATION_NAME, s.RDB$FIELD_POSITION";
+    private static final String FIREBIRD_FOREIGN_KEYS = "SELECT rc.RDB$RELATION_NAME, s.RDB$FIELD_NAME, pk.RDB$RELATION_NAME FROM RDB$RELATION_CONSTRAINTS rc JOIN RDB$REF_CONSTRAINTS ref ON ref.RDB$CONSTRAINT_NAME = rc.RDB$CONSTRAINT_NAME JOIN RDB$RELATION_CONSTRAINTS pk ON pk.RDB$CONSTRAINT_NAME = ref.RDB$CONST_NAME_UQ JOIN RDB$INDEX_SEGMENTS s ON s.RDB$INDEX_NAME = rc.RDB$INDEX_NAME WHERE rc.RDB$CONSTRAINT_TYPE = 'FOREIGN KEY' ORDER BY rc.RDB$RELATION_NAME, s.RDB$FIELD_POSITION";
+
+    private static final String POSTGRES_PRIMARY_KEYS = "SELECT kcu.table_name, kcu.column_name FROM information_schema.table_constraints tc JOIN information_schema.key_column_usage kcu ON kcu.constraint_name = tc.constraint_name AND kcu.table_schema = tc.table_schema AND kcu.table_name = tc.table_name WHERE tc.constraint_type = 'PRIMARY KEY' ORDER BY kcu.table_name, kcu.ordinal_position";
+    private static final String POSTGRES_FOREIGN_KEYS = "SELECT kcu.table_name, kcu.column_name, ccu.table_name FROM information_schema.table_constraints tc JOIN information_schema.key_column_usage kcu ON kcu.constraint_name = tc.constraint_name AND kcu.table_schema = tc.table_schema AND kcu.table_name = tc.table_name JOIN information_schema.constraint_column_usage ccu ON ccu.constraint_name = tc.constraint_name AND ccu.constraint_schema = tc.constraint_schema WHERE tc.constraint_type = 'FOREIGN KEY' ORDER BY kcu.table_name, kcu.ordinal_position";
+
+    private static final String MYSQL_PRIMARY_KEYS = "SELECT TABLE_NAME, COLUMN_NAME FROM information_schema.KEY_COLUMN_USAGE WHERE TABLE_SCHEMA = DATABASE() AND CONSTRAINT_NAME = 'PRIMARY' ORDER BY TABLE_NAME, ORDINAL_POSITION";
+    private static final String MYSQL_FOREIGN_KEYS = "SELECT TABLE_NAME, COLUMN_NAME, REFERENCED_TABLE_NAME FROM information_schema.KEY_COLUMN_USAGE WHERE TABLE_SCHEMA = DATABASE() AND REFERENCED_TABLE_NAME IS NOT NULL ORDER BY TABLE_NAME, ORDINAL_POSITION";
+
+    /**
+     * Resumo do catálogo: muda quando tabelas, colunas, chaves ou sequências
+     * mudam (RDB$FORMAT aumenta a cada alteração da tabela)
+     */
+    private static final String FIREBIRD_FINGERPRINT = "SELECT COUNT(*), SUM(RDB$FORMAT), MAX(RDB$RELATION_ID), (SELECT COUNT(*) FROM RDB$RELATION_FIELDS WHERE COALESCE(RDB$SYSTEM_FLAG, 0) = 0), (SELECT COUNT(*) FROM RDB$RELATION_CONSTRAINTS), (SELECT COUNT(*) FROM RDB$GENERATORS WHERE COALESCE(RDB$SYSTEM_FLAG, 0) = 0) FROM RDB$RELATIONS WHERE COALESCE(RDB$SYSTEM_FLAG, 0) = 0";
+    private static final String POSTGRES_FINGERPRINT = "SELECT COUNT(*), SUM(hashtext(CONCAT_WS('.', table_name, column_name, data_type, is_nullable, ordinal_position))), (SELECT COUNT(*) FROM information_schema.table_constraints WHERE table_schema NOT IN ('pg_catalog', 'information_schema')) FROM information_schema.columns WHERE table_schema NOT IN ('pg_catalog', 'information_schema')";
+    private static final String MYSQL_FINGERPRINT = "SELECT COUNT(*), SUM(CRC32(CONCAT_WS('.', TABLE_NAME, COLUMN_NAME, COLUMN_TYPE, IS_NULLABLE, ORDINAL_POSITION))), (SELECT COUNT(*) FROM information_schema.TABLE_CONSTRAINTS WHERE TABLE_SCHEMA = DATABASE()) FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE()";
+    /**
+     * Derby não tem função de hash: lista as colunas (COLUMNDATATYPE vem como
+     * texto, ex. 'VARCHAR(50) NOT NULL') e as chaves, resumidas aqui
+     */
+    private static final String DERBY_FINGERPRINT = "SELECT t.TABLENAME, c.COLUMNNUMBER, c.COLUMNNAME, c.COLUMNDATATYPE FROM SYS.SYSTABLES t JOIN SYS.SYSCOLUMNS c ON c.REFERENCEID = t.TABLEID WHERE t.TABLETYPE = 'T' ORDER BY t.TABLENAME, c.COLUMNNUMBER";
+    private static final String DERBY_CONSTRAINTS = "SELECT t.TABLENAME, k.CONSTRAINTNAME, k.TYPE FROM SYS.SYSCONSTRAINTS k JOIN SYS.SYSTABLES t ON t.TABLEID = k.TABLEID WHERE t.TABLETYPE = 'T' ORDER BY t.TABLENAME, k.CONSTRAINTNAME";
+
+    private static final String[] SEQUENCE_PREFIXES = {"seq_", "gen_", "sq_", "sequence_", "generator_"};
+    private static final String[] SEQUENCE_SUFFIXES = {"_id", "_seq", "_gen", "_sequence", "_generator", "_pk"};
+
+    private Catalog() {
+    }
+
+    /**
+     * Resumo do catálogo (uma consulta; no Derby, duas), bem mais leve que
+     * <i>read</i>: se não mudou, os metadados continuam valendo
+     *
+     * @param connection Conexão com o banco de dados
+     * @return String ou null se o banco não tem consulta de resumo
+     * @throws DatabaseException
+     */
+    static String fingerprint(java.sql.Connection connection) throws DatabaseException {
+
+        try {
+
+            String url = connection.getMetaData().getURL().toLowerCase();
+            String[] queries;
+
+            if (url.contains("firebird")) {
+                queries = new String[]{FIREBIRD_FINGERPRINT};
+            } else if (url.contains("postgres")) {
+                queries = new String[]{POSTGRES_FINGERPRINT};
+            } else if (url.contains("mysql")) {
+                queries = new String[]{MYSQL_FINGERPRINT};
+            } else if (url.contains("derby")) {
+                queries = new String[]{DERBY_FINGERPRINT, DERBY_CONSTRAINTS};
+            } else {
+                return null;
+            }
+
+            CRC32 crc = new CRC32();
+            long rows = 0;
+
+            try (Statement st = connection.createStatement()) {
+                for (String query : queries) {
+                    try (ResultSet rs = st.executeQuery(query)) {
+
+                        int count = rs.getMetaData().getColumnCount();
+
+                        while (rs.next()) {
+
+                            rows++;
+
+                            for (int i = 1; i <= count; i++) {
+                                crc.update((String.valueOf(rs.getString(i)) + (i < count ? ":" : "\n")).getBytes(StandardCharsets.UTF_8));
+                            }
+                        }
+                    }
+                }
+            }
+
+            return rows + ":" + Long.toHexString(crc.getValue());
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
+
+    /**
+     * Lê os metadados de todas as tabelas
+     *
+     * @param connection Conexão com o banco de dados
+     * @return List Tabelas na ordem do catálogo
+     * @throws DatabaseException
+     */
+    static List<TableMeta> read(java.sql.Connection connection) throws DatabaseException {
+
+        try {
+
+            DatabaseMetaData md = connection.getMetaData();
+            String url = md.getURL().toLowerCase();
+
+            Set<String> tables = new LinkedHashSet();
+
+            try (ResultSet rs = md.getTables(null, null, null, new String[]{"TABLE"})) {
+                while (rs.next()) {
+                    tables.add(rs.getString(3).toLowerCase().trim());
+                }
+            }
+
+            Map<String, String> sequences = url.contains("firebird") ? Catalog.readSequences(connection, tables) : new HashMap();
+            Map<String, List<ColumnMeta>> columns = Catalog.readColumns(md, tables);
+
+            Map<String, String> primaryKeys = new HashMap();
+            Map<String, List<ForeignKeyMeta>> foreignKeys = new HashMap();
+
+            String pkQuery = null;
+            String fkQuery = null;
+
+            if (url.contains("firebird")) {
+                pkQuery = FIREBIRD_PRIMARY_KEYS;
+                fkQuery = FIREBIRD_FOREIGN_KEYS;
+            } else if (url.contains("postgres")) {
+                pkQuery = POSTGRES_PRIMARY_KEYS;
+                fkQuery = POSTGRES_FOREIGN_KEYS;
+            } else if (url.contains("mysql")) {
+                pkQuery = MYSQL_PRIMARY_KEYS;
+                fkQuery = MYSQL_FOREIGN_KEYS;
+            }
+
+            boolean done = false;
+
+            if (pkQuery != null) {
+                try {
+                    Catalog.readKeys(connection, pkQuery, fkQuery, tables, primaryKeys, foreignKeys);
+                    done = true;
+                } catch (SQLException ex) {
+                    System.err.println(ex);
+                    primaryKeys.clear();
+                    foreignKeys.clear();
+                }
+            }
+
+            if (!done) {
+                Catalog.readKeysParallel(connection, tables, primaryKeys, foreignKeys);
+            }
+
+            List<TableMeta> list = new ArrayList();
+
+            for (String table : tables) {
+
+                List<ColumnMeta> c = columns.get(table);
+                List<ForeignKeyMeta> f = foreignKeys.get(table);
+
+                list.add(new TableMeta(table, sequences.get(table), primaryKeys.get(table), c == null ? new ArrayList() : c, f == null ? new ArrayList() : f));
+            }
+
+            return list;
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
+
+    /**
+     * Sequenciadores do Firebird ligados às tabelas por índice de nomes
+     *
+     * @param connection
+     * @param tables
+     * @return Map [tabela] : [sequenciador]
+     * @throws SQLException
+     */
+    private static Map<String, String> readSequences(java.sql.Connection connection, Collection<String> tables) throws SQLException {
+
+        List<String> sequences = new ArrayList();
+
+        try (Statement st = connection.createStatement(); ResultSet rs = st.executeQuery(FIREBIRD_SEQUENCES)) {
+            while (rs.next()) {
+                sequences.add(rs.getString(1).toLowerCase().trim());
+            }
+        }
+
+        Map<String, String> index = new HashMap();
+
+        for (String sequence : sequences) {
+            for (String key : Catalog.sequenceKeys(sequence)) {
+                index.putIfAbsent(key, sequence);
+            }
+        }
+
+        Map<String, String> result = new HashMap();
+
+        for (String table : tables) {
+
+            String sequence = index.get(table);
+
+            // Nome fora do padrão: mantém a busca por trecho do nome
+            if (sequence == null) {
+                for (String s : sequences) {
+                    if (s.contains(table)) {
+                        sequence = s;
+                        break;
+                    }
+                }
+            }
+
+            if (sequence != null) {
+                result.put(table, sequence);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Nomes de tabela prováveis para um sequenciador, sem os prefixos e
+     * sufixos usuais (seq_tabela_id, gen_tabela, tabela_seq, ...)
+     *
+     * @param sequence
+     * @return Set
+     */
+    private static Set<String> sequenceKeys(String sequence) {
+
+        Set<String> keys = new LinkedHashSet();
+        keys.add(sequence);
+
+        List<String> names = new ArrayList();
+        names.add(sequence);
+
+        for (String prefix : SEQUENCE_PREFIXES) {
+            if (sequence.startsWith(prefix) && sequence.length() > prefix.length()) {
+                names.add(sequence.substring(prefix.length()));
+            }
+        }
+
+        for (String name : names) {
+
+            keys.add(name);
+
+            String s = name;
+            boolean stripped = true;
+
+            while (stripped) {
+
+                stripped = false;
+
+                for (String suffix : SEQUENCE_SUFFIXES) {
+                    if (s.endsWith(suffix) && s.length() > suffix.length()) {
+                        s = s.substring(0, s.length() - suffix.length());
+                        keys.add(s);
+                        stripped = true;
+                    }
+                }
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * Colunas de todas as tabelas em uma única consulta ao catálogo
+     *
+     * @param md
+     * @param tables
+     * @return Map [tabela] : [colunas]
+     * @throws SQLException
+     */
+    private static Map<String, List<ColumnMeta>> readColumns(DatabaseMetaData md, Set<String> tables) throws SQLException {
+
+        Map<String, List<ColumnMeta>> columns = new LinkedHashMap();
+
+        try (ResultSet rs = md.getColumns(null, null, "%", "%")) {
+
+            while (rs.next()) {
+
+                String table = rs.getString(3).toLowerCase().trim();
+
+                if (!tables.contains(table)) {
+                    continue;
+                }
+
+                List<ColumnMeta> list = columns.get(table);
+
+                if (list == null) {
+                    list = new ArrayList();
+                    columns.put(table, list);
+                }
+
+                list.add(Catalog.toColumn(rs, list.size()));
+            }
+        }
+
+        return columns;
+    }
+
+    /**
+     * Coluna da linha atual de <i>DatabaseMetaData.getColumns</i>
+     *
+     * @param rs
+     * @param index
+     * @return ColumnMeta
+     * @throws SQLException
+     */
+    private static ColumnMeta toColumn(ResultSet rs, int index) throws SQLException {
+
+        String column = rs.getString(4).trim().toLowerCase();
+        int type = rs.getInt(5);
+        String typeName = rs.getString(6);
+        int length = rs.getInt(7);
+        boolean notNull = rs.getString(18).toLowerCase().equals("no");
+
+        return new ColumnMeta(column, index, DataType.parse(type, length), type, typeName, length, notNull);
+    }
+
+    /**
+     * Chaves primárias e estrangeiras de todas as tabelas em duas consultas
+     *
+     * @param connection
+     * @param pkQuery
+     * @param fkQuery
+     * @param tables
+     * @param primaryKeys
+     * @param foreignKeys
+     * @throws SQLException
+     */
+    private static void readKeys(java.sql.Connection connection, String pkQuery, String fkQuery, Set<String> tables, Map<String, String> primaryKeys, Map<String, List<ForeignKeyMeta>> foreignKeys) throws SQLException {
+
+        try (Statement st = connection.createStatement()) {
+
+            try (ResultSet rs = st.executeQuery(pkQuery)) {
+                while (rs.next()) {
+                    String table = rs.getString(1).toLowerCase().trim();
+                    if (tables.contains(table)) {
+                        primaryKeys.putIfAbsent(table, rs.getString(2).toLowerCase().trim());
+                    }
+                }
+            }
+
+            try (ResultSet rs = st.executeQuery(fkQuery)) {
+                while (rs.next()) {
+                    String table = rs.getString(1).toLowerCase().trim();
+                    if (tables.contains(table)) {
+                        Catalog.addForeignKey(foreignKeys, table, rs.getString(2).toLowerCase().trim(), rs.getString(3).toLowerCase().trim());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Chaves primárias e estrangeiras tabela a tabela, distribuídas entre
+     * várias conexões
+     *
+     * @param connection
+     * @param tables
+     * @param primaryKeys
+     * @param foreignKeys
+     * @throws SQLException
+     * @throws DatabaseException
+     */
+    private static void readKeysParallel(java.sql.Connection connection, Set<String> tables, Map<String, String> primaryKeys, Map<String, List<ForeignKeyMeta>> foreignKeys) throws SQLException, DatabaseException {
+
+        Queue<String> queue = new ConcurrentLinkedQueue(tables);
+        Map<String, String> pks = new ConcurrentHashMap();
+        Map<String, List<ForeignKeyMeta>> fks = new ConcurrentHashMap();
+
+        int threads = Math.max(1, Math.min(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()), tables.size() / 25));
+
+        List<java.sql.Connection> connections = new ArrayList();
+        connections.add(connection);
+
+        for (int i = 1; i < threads; i++) {
+            try {
+                connections.add(Connection.connect());
+            } catch (DatabaseException ex) {
+                break;
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(connections.size());
+
+        try {
+
+            List<Future<Void>> futures = new ArrayList();
+
+            for (java.sql.Connection c : connections) {
+                futures.add(executor.submit(() -> {
+
+                    DatabaseMetaData md = c.getMetaData();
+                    String table;
+
+                    while ((table = queue.poll()) != null) {
+
+                        try (ResultSet rs = md.getPrimaryKeys(null, null, table)) {
+                            if (rs.next()) {
+                                pks.put(table, rs.getString(4).trim().toLowerCase());
+                            }
+                        }
+
+                        List<ForeignKeyMeta> list = new ArrayList();
+
+                        try (ResultSet rs = md.getImportedKeys(null, null, table)) {
+                            while (rs.next()) {
+                                list.add(new ForeignKeyMeta(rs.getString(8).trim().toLowerCase(), rs.getString(3).trim().toLowerCase()));
+                            }
+                        }
+
+                        fks.put(table, list);
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException(ex);
+        } catch (ExecutionException ex) {
+            throw new DatabaseException(ex.getCause());
+        } finally {
+
+            executor.shutdown();
+
+            for (int i = 1; i < connections.size(); i++) {
+                connections.get(i).close();
+            }
+        }
+
+        primaryKeys.putAll(pks);
+
+        for (Map.Entry<String, List<ForeignKeyMeta>> entry : fks.entrySet()) {
+            for (ForeignKeyMeta foreignKey : entry.getValue()) {
+                Catalog.addForeignKey(foreignKeys, entry.getKey(), foreignKey.getColumn(), foreignKey.getReferencedTable());
+            }
+        }
+    }
+
+    /**
+     * Adiciona a chave estrangeira. Uma coluna aparece só uma vez.
+     */
+    private static void addForeignKey(Map<String, List<ForeignKeyMeta>> foreignKeys, String table, String column, String referencedTable) {
+
+        List<ForeignKeyMeta> list = foreignKeys.get(table);
+
+        if (list == null) {
+            list = new ArrayList();
+            foreignKeys.put(table, list);
+        }
+
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).getColumn().equals(column)) {
+                list.set(i, new ForeignKeyMeta(column, referencedTable));
+                return;
+            }
+        }
+
+        list.add(new ForeignKeyMeta(column, referencedTable));
+    }
+}
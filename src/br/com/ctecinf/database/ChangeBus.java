@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Avisos das gravações confirmadas (<i>Update</i> e <i>Transaction</i>
+ * depois do <i>commit</i>) para quem precisa descartar ou atualizar dados
+ * (caches, índices, notificações aos clientes).<br>
+ * Cada inscrição tem uma fila limitada: a gravação nunca espera pelo
+ * inscrito. Os eventos são entregues em ordem, por poucas threads
+ * compartilhadas. Fila cheia:<br>
+ * <i>ChangeBus.DROP_OLDEST</i>: descarta o evento mais antigo<br>
+ * <i>ChangeBus.DROP_NEWEST</i>: descarta o evento novo<br>
+ * <i>ChangeBus.CANCEL</i>: cancela a inscrição (o inscrito precisa recarregar
+ * tudo)
+ *
+ * <pre>
+ * ChangeBus.Subscription s = ChangeBus.subscribe("produto", (event) -&gt; {
+ *     System.out.println(event.getOperation() + " " + event.getId());
+ * });
+ * </pre>
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class ChangeBus {
+
+    public static final String DROP_OLDEST = "drop_oldest";
+    public static final String DROP_NEWEST = "drop_newest";
+    public static final String CANCEL = "cancel";
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int THREADS = 2;
+    private static final int DRAIN_BATCH = 256;
+
+    private static final CopyOnWriteArrayList<Subscription> SUBSCRIPTIONS = new CopyOnWriteArrayList();
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, (Runnable r) -> {
+        Thread thread = new Thread(r, "change-bus-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ChangeBus() {
+    }
+
+    /**
+     * Recebe os eventos do <i>ChangeBus</i>
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         *
+         * @param event
+         * @throws Exception
+         */
+        void changed(ChangeEvent event) throws Exception;
+    }
+
+    /**
+     * Inscreve para os eventos de uma tabela (fila de 1024 eventos,
+     * <i>DROP_OLDEST</i>)
+     *
+     * @param table Tabela ou NULL para todas
+     * @param listener
+     * @return Subscription
+     */
+    public static Subscription subscribe(String table, Listener listener) {
+        return ChangeBus.subscribe(table, listener, DEFAULT_CAPACITY, DROP_OLDEST);
+    }
+
+    /**
+     * Inscreve para os eventos de uma tabela
+     *
+     * @param table Tabela ou NULL para todas
+     * @param listener
+     * @param capacity Tamanho da fila
+     * @param overflow ChangeBus.DROP_OLDEST | ChangeBus.DROP_NEWEST |
+     * ChangeBus.CANCEL
+     * @return Subscription
+     */
+    public static Subscription subscribe(String table, Listener listener, int capacity, String overflow) {
+
+        Subscription subscription = new Subscription(table == null ? null : table.toLowerCase().trim(), listener, capacity, overflow);
+
+        SUBSCRIPTIONS.add(subscription);
+
+        return subscription;
+    }
+
+    /**
+     * Publica o evento para as inscrições da tabela (chamado pelo
+     * <i>Update</i> depois da gravação confirmada)
+     *
+     * @param event
+     */
+    static void publish(ChangeEvent event) {
+        for (Subscription subscription : SUBSCRIPTIONS) {
+            if (subscription.table == null || subscription.table.equals(event.getTable())) {
+                subscription.offer(event);
+            }
+        }
+    }
+
+    /**
+     * Inscrição no <i>ChangeBus</i>
+     */
+    public static final class Subscription implements AutoCloseable {
+
+        private final String table;
+        private final Listener listener;
+        private final String overflow;
+        private final ArrayBlockingQueue<ChangeEvent> queue;
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong dropped = new AtomicLong();
+
+        private volatile boolean cancelled;
+
+        private Subscription(String table, Listener listener, int capacity, String overflow) {
+            this.table = table;
+            this.listener = listener;
+            this.overflow = overflow;
+            this.queue = new ArrayBlockingQueue(Math.max(1, capacity));
+        }
+
+        /**
+         * Total de eventos descartados por fila cheia
+         *
+         * @return long
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Verifica se a inscrição foi cancelada (<i>close</i> ou fila cheia com
+         * <i>ChangeBus.CANCEL</i>)
+         *
+         * @return boolean
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void offer(ChangeEvent event) {
+
+            if (cancelled) {
+                return;
+            }
+
+            while (!queue.offer(event)) {
+
+                dropped.incrementAndGet();
+
+                if (DROP_NEWEST.equals(overflow)) {
+                    return;
+                }
+
+                if (CANCEL.equals(overflow)) {
+                    this.close();
+                    return;
+                }
+
+                queue.poll();
+            }
+
+            this.schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                EXECUTOR.execute(this::drain);
+            }
+        }
+
+        /**
+         * Entrega um lote de eventos e devolve a thread; continua em outra
+         * execução se a fila não esvaziou
+         */
+        private void drain() {
+
+            for (int i = 0; i < DRAIN_BATCH && !cancelled; i++) {
+
+                ChangeEvent event = queue.poll();
+
+                if (event == null) {
+                    break;
+                }
+
+                try {
+                    listener.changed(event);
+                } catch (Exception ex) {
+                    System.err.println("ChangeBus: " + ex);
+                }
+            }
+
+            scheduled.set(false);
+
+            if (!queue.isEmpty() && !cancelled) {
+                this.schedule();
+            }
+        }
+
+        @Override
+        public void close() {
+            cancelled = true;
+            SUBSCRIPTIONS.remove(this);
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gravação confirmada no banco de dados, publicada no <i>ChangeBus</i>
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class ChangeEvent {
+
+    /**
+     * Começa no horário de início, para os números continuarem crescendo
+     * depois de reiniciar a aplicação
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final long sequence;
+    private final long time;
+    private final String table;
+    private final String operation;
+    private final Object id;
+    private final Set<String> columns;
+
+    ChangeEvent(String table, String operation, Object id, Set<String> columns) {
+        this.sequence = SEQUENCE.incrementAndGet();
+        this.time = System.currentTimeMillis();
+        this.table = table.toLowerCase().trim();
+        this.operation = operation;
+        this.id = id;
+        this.columns = columns == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(columns);
+    }
+
+    /**
+     * Número único do evento, crescente na ordem de criação. Gravações
+     * simultâneas podem chegar aos inscritos fora dessa ordem: não serve para
+     * detectar eventos perdidos.
+     *
+     * @return long
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Horário da publicação em milissegundos
+     *
+     * @return long
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Tabela alterada (em minúsculas)
+     *
+     * @return String
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * Operação
+     *
+     * @return String Update.INSERT | Update.UPDATE | Update.DELETE |
+     * Update.UPSERT | Update.PARTIAL
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Chave primária do registro
+     *
+     * @return Object ou NULL se desconhecida
+     */
+    public Object getId() {
+        return id;
+    }
+
+    /**
+     * Colunas gravadas (sem a chave primária; vazio na exclusão)
+     *
+     * @return Set
+     */
+    public Set<String> getColumns() {
+        return columns;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("{\"sequence\": ").append(sequence);
+        sb.append(", \"table\": \"").append(table).append("\"");
+        sb.append(", \"operation\": \"").append(operation).append("\"");
+        sb.append(", \"id\": ").append(id == null ? "null" : id instanceof Number ? id.toString() : "\"" + id.toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+        sb.append(", \"columns\": [");
+
+        boolean first = true;
+
+        for (String column : columns) {
+            sb.append(first ? "" : ", ").append("\"").append(column).append("\"");
+            first = false;
+        }
+
+        sb.append("]}");
+
+        return sb.toString();
+    }
+}
@@ -16,6 +16,10 @@
  */
 package br.com.ctecinf.database;
 
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -204,7 +208,11 @@ public class Clause {
     }
 
     /**
-     * Filtro
+     * Filtro pelo tipo das colunas: número compara as colunas numéricas,
+     * data ('dd/MM/yyyy', 'yyyy-MM-dd' ou 'MM/yyyy') compara as colunas de
+     * data e texto compara o início das colunas de texto, sem diferenciar
+     * maiúsculas. As chaves estrangeiras são filtradas pelas colunas da tabela
+     * referenciada.
      *
      * @param filter
      * @return Clause
@@ -212,37 +220,185 @@ public class Clause {
      */
     public Clause like(Object filter) throws DatabaseException {
 
-        if (filter == null) {
+        if (filter == null || filter.toString().trim().isEmpty()) {
             return this;
         }
 
-        List<String> columns = new ArrayList();
+        String term = filter.toString().trim();
+        String url = Connection.getURL();
 
-        for (String column : Metadata.getColumnsName(this.table)) {
-            if (Connection.getURL().contains("postgres")) {
-                columns.add("LOWER (CAST(" + this.table + "." + column + ") AS VARCHAR) LIKE '" + filter.toString().toLowerCase() + "%'");
-            } else {
-                columns.add("LOWER (" + this.table + "." + column + ") LIKE '" + filter.toString().toLowerCase() + "%'");
+        TableMeta meta = Metadata.requireTable(this.table);
+
+        List<String> columns = Clause.plan(meta, term, url);
+
+        for (ForeignKeyMeta foreignKey : meta.getForeignKeys()) {
+
+            String referencedTable = foreignKey.getReferencedTable();
+            List<String> referencedColumns = Clause.plan(Metadata.requireTable(referencedTable), term, url);
+
+            if (referencedColumns.isEmpty()) {
+                continue;
             }
+
+            // Filtra pela chave estrangeira: vale com ou sem JOIN na consulta
+            columns.add(this.table + "." + foreignKey.getColumn() + " IN (SELECT " + referencedTable + "." + Metadata.getPrimaryKeyName(referencedTable) + " FROM " + referencedTable + " WHERE " + String.join(" OR ", referencedColumns) + ")");
         }
 
-        for (Object referencedTable : Metadata.getReferencedTables(this.table).values()) {
-            for (String col : Metadata.getColumnsName(referencedTable.toString())) {
-                if (Connection.getURL().contains("postgres")) {
-                    columns.add("LOWER (CAST(" + referencedTable + "." + col + ") AS VARCHAR) LIKE '" + filter.toString().toLowerCase() + "%'");
-                } else {
-                    columns.add("LOWER (" + referencedTable + "." + col + ") LIKE '" + filter.toString().toLowerCase() + "%'");
-                }
-            }
+        if (columns.isEmpty()) {
+            columns.add("1 = 0");
         }
 
         this.openParentheses();
-        this.clause += columns.stream().map(String::valueOf).collect(Collectors.joining(" OR "));
+        this.clause += String.join(" OR ", columns);
         this.closeParentheses();
 
         return this;
     }
 
+    /**
+     * Condições do termo para as colunas da tabela (sem as chaves
+     * estrangeiras)
+     */
+    private static List<String> plan(TableMeta meta, String term, String url) {
+
+        List<String> conditions = new ArrayList();
+
+        String number = Clause.parseNumber(term);
+        LocalDate[] range = Clause.parseDate(term);
+        String text = term.replace("'", "''");
+
+        for (ColumnMeta column : meta.getColumns()) {
+
+            if (meta.getForeignKey(column.getName()) != null) {
+                continue;
+            }
+
+            String name = meta.getName() + "." + column.getName();
+
+            // Pelo tipo SQL: DataType.INTEGER também inclui BIT e BINARY
+            // (boolean e bytea no Postgres), que não comparam com números
+            switch (column.getDataType()) {
+
+                case Types.BIGINT:
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                case Types.TINYINT:
+                    if (number != null && number.indexOf('.') < 0) {
+                        conditions.add(name + " = " + number);
+                    }
+                    continue;
+
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                case Types.REAL:
+                    if (number != null) {
+                        conditions.add(name + " = " + number);
+                    }
+                    continue;
+
+                default:
+                    break;
+            }
+
+            switch (column.getType()) {
+
+                case DataType.DATE:
+                    if (range != null) {
+                        conditions.add(range[1].equals(range[0].plusDays(1))
+                                ? name + " = " + Clause.dateLiteral(range[0], url)
+                                : "(" + name + " >= " + Clause.dateLiteral(range[0], url) + " AND " + name + " < " + Clause.dateLiteral(range[1], url) + ")");
+                    }
+                    break;
+
+                case DataType.TIMESTAMP:
+                    if (range != null) {
+                        conditions.add("(" + name + " >= " + Clause.timestampLiteral(range[0], url) + " AND " + name + " < " + Clause.timestampLiteral(range[1], url) + ")");
+                    }
+                    break;
+
+                case DataType.STRING:
+                case DataType.TEXT:
+                    if (url.contains("postgres")) {
+                        conditions.add(name + " ILIKE '" + text + "%'");
+                    } else if (url.contains("mysql")) {
+                        // Collation padrão do MySQL já não diferencia maiúsculas
+                        conditions.add(name + " LIKE '" + text + "%'");
+                    } else if (url.contains("firebird")) {
+                        // Usa índice de expressão UPPER(coluna), se existir
+                        conditions.add("UPPER(" + name + ") STARTING WITH '" + text.toUpperCase() + "'");
+                    } else {
+                        conditions.add("LOWER(" + name + ") LIKE '" + text.toLowerCase() + "%'");
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        return conditions;
+    }
+
+    /**
+     * Número do termo ('1.234,56', '1234.56', '-12') ou NULL
+     */
+    private static String parseNumber(String term) {
+
+        String value = term;
+
+        if (value.matches("-?\\d{1,3}(\\.\\d{3})+(,\\d+)?") || value.matches("-?\\d+,\\d+")) {
+            value = value.replace(".", "").replace(",", ".");
+        }
+
+        if (!value.matches("-?\\d+(\\.\\d+)?") || value.length() > 18) {
+            return null;
+        }
+
+        return new BigDecimal(value).toPlainString();
+    }
+
+    /**
+     * Intervalo [início, fim) da data do termo ou NULL
+     */
+    private static LocalDate[] parseDate(String term) {
+
+        try {
+
+            if (term.matches("\\d{1,2}/\\d{1,2}/\\d{4}")) {
+                String[] parts = term.split("/");
+                LocalDate date = LocalDate.of(Integer.parseInt(parts[2]), Integer.parseInt(parts[1]), Integer.parseInt(parts[0]));
+                return new LocalDate[]{date, date.plusDays(1)};
+            }
+
+            if (term.matches("\\d{4}-\\d{1,2}-\\d{1,2}")) {
+                String[] parts = term.split("-");
+                LocalDate date = LocalDate.of(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                return new LocalDate[]{date, date.plusDays(1)};
+            }
+
+            if (term.matches("\\d{1,2}/\\d{4}")) {
+                String[] parts = term.split("/");
+                LocalDate date = LocalDate.of(Integer.parseInt(parts[1]), Integer.parseInt(parts[0]), 1);
+                return new LocalDate[]{date, date.plusMonths(1)};
+            }
+
+        } catch (DateTimeException ex) {
+            return null;
+        }
+
+        return null;
+    }
+
+    private static String dateLiteral(LocalDate date, String url) {
+        return url.contains("derby") ? "DATE('" + date + "')" : "DATE '" + date + "'";
+    }
+
+    private static String timestampLiteral(LocalDate date, String url) {
+        return url.contains("derby") ? "TIMESTAMP('" + date + " 00:00:00')" : "TIMESTAMP '" + date + " 00:00:00'";
+    }
+
     /**
      * Igual
      *
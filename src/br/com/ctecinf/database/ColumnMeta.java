@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+/**
+ * Metadados imutáveis de uma coluna
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class ColumnMeta {
+
+    private final String name;
+    private final int index;
+    private final String type;
+    private final int dataType;
+    private final String typeName;
+    private final int length;
+    private final boolean notNull;
+
+    /**
+     * Construtor
+     *
+     * @param name Nome da coluna
+     * @param index Posição da coluna na tabela (começa em 0)
+     * @param type Descrição do tipo (DataType)
+     * @param dataType Tipo da coluna (java.sql.Types)
+     * @param typeName Nome do tipo no banco de dados
+     * @param length Tamanho da coluna
+     * @param notNull Coluna obrigatória
+     */
+    public ColumnMeta(String name, int index, String type, int dataType, String typeName, int length, boolean notNull) {
+        this.name = name;
+        this.index = index;
+        this.type = type;
+        this.dataType = dataType;
+        this.typeName = typeName;
+        this.length = length;
+        this.notNull = notNull;
+    }
+
+    /**
+     * Nome da coluna
+     *
+     * @return String
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Posição da coluna na tabela (começa em 0)
+     *
+     * @return int
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Descrição do tipo
+     *
+     * @return String DataType.STRING, DataType.INTEGER, ...
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Tipo da coluna
+     *
+     * @return int java.sql.Types
+     */
+    public int getDataType() {
+        return dataType;
+    }
+
+    /**
+     * Nome do tipo no banco de dados
+     *
+     * @return String
+     */
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /**
+     * Tamanho da coluna
+     *
+     * @return int
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Coluna obrigatória
+     *
+     * @return boolean
+     */
+    public boolean isNotNull() {
+        return notNull;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (!(obj instanceof ColumnMeta)) {
+            return false;
+        }
+
+        ColumnMeta c = (ColumnMeta) obj;
+
+        return name.equals(c.name) && index == c.index && type.equals(c.type) && dataType == c.dataType && String.valueOf(typeName).equals(String.valueOf(c.typeName)) && length == c.length && notNull == c.notNull;
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode() * 31 + dataType;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resultado da consulta em colunas de tipos primitivos, para relatórios:
+ * sem um objeto por valor nem um mapa por registro.<br>
+ * <i>ColumnarResult.LONG</i>: BIGINT, DATE e TIMESTAMP (milissegundos)<br>
+ * <i>ColumnarResult.INT</i>: INTEGER, SMALLINT, TINYINT e BOOLEAN (0 ou 1)<br>
+ * <i>ColumnarResult.DOUBLE</i>: DECIMAL, NUMERIC, DOUBLE, FLOAT e REAL<br>
+ * <i>ColumnarResult.STRING</i>: texto, com cada valor distinto guardado uma
+ * única vez (dicionário)<br>
+ * Outros tipos (BLOB, ...) ficam fora do resultado. As colunas da tabela
+ * consultada usam o nome da coluna; as das tabelas referenciadas, o nome
+ * 'tabela_coluna'. Valores nulos são marcados em um mapa de bits.<br>
+ * Com <i>offHeap</i>, os valores ficam em memória fora do <i>heap</i>
+ * (<i>ByteBuffer.allocateDirect</i>).
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class ColumnarResult {
+
+    public static final String LONG = "long";
+    public static final String INT = "int";
+    public static final String DOUBLE = "double";
+    public static final String STRING = "string";
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Map<String, Vector> vectors;
+    private final int size;
+
+    private ColumnarResult(Map<String, Vector> vectors, int size) {
+        this.vectors = vectors;
+        this.size = size;
+    }
+
+    /**
+     * Lê o resultado inteiro em colunas
+     *
+     * @param rs Resultado (não é fechado)
+     * @param table Tabela consultada
+     * @param offHeap TRUE: valores fora do <i>heap</i>
+     * @return ColumnarResult
+     * @throws DatabaseException
+     */
+    static ColumnarResult read(ResultSet rs, String table, boolean offHeap) throws DatabaseException {
+
+        Map<String, Vector> vectors = new LinkedHashMap();
+        List<Vector> list = new ArrayList();
+        List<Integer> indexes = new ArrayList();
+
+        String prefix = table.toLowerCase().trim() + "_";
+        int size = 0;
+
+        try {
+
+            ResultSetMetaData md = rs.getMetaData();
+
+            for (int i = 1; i <= md.getColumnCount(); i++) {
+
+                String type = ColumnarResult.typeOf(md.getColumnType(i));
+                String name = md.getColumnLabel(i).toLowerCase().trim();
+
+                if (type == null || vectors.containsKey(name)) {
+                    continue;
+                }
+
+                name = name.startsWith(prefix) ? name.substring(prefix.length()) : name;
+
+                Vector vector = new Vector(type, md.getColumnType(i), offHeap);
+
+                vectors.put(name, vector);
+                list.add(vector);
+                indexes.add(i);
+            }
+
+            while (rs.next()) {
+
+                for (int i = 0; i < list.size(); i++) {
+                    list.get(i).read(rs, indexes.get(i), size);
+                }
+
+                size++;
+            }
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+
+        return new ColumnarResult(Collections.unmodifiableMap(vectors), size);
+    }
+
+    private static String typeOf(int type) {
+
+        switch (type) {
+
+            case Types.BIGINT:
+            case Types.DATE:
+            case Types.TIMESTAMP:
+                return ColumnarResult.LONG;
+
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return ColumnarResult.INT;
+
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return ColumnarResult.DOUBLE;
+
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.LONGNVARCHAR:
+                return ColumnarResult.STRING;
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Total de registros
+     *
+     * @return int
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Nome das colunas
+     *
+     * @return List
+     */
+    public List<String> getColumns() {
+        return new ArrayList(vectors.keySet());
+    }
+
+    /**
+     * Tipo da coluna
+     *
+     * @param column
+     * @return String ColumnarResult.LONG | INT | DOUBLE | STRING
+     * @throws DatabaseException
+     */
+    public String getType(String column) throws DatabaseException {
+        return this.vector(column).type;
+    }
+
+    /**
+     * Verifica se o valor é nulo
+     *
+     * @param column
+     * @param row Registro (começa em 0)
+     * @return boolean
+     * @throws DatabaseException
+     */
+    public boolean isNull(String column, int row) throws DatabaseException {
+        return this.vector(column).isNull(row);
+    }
+
+    /**
+     * Valor de coluna LONG ou INT (0 se nulo)
+     *
+     * @param column
+     * @param row Registro (começa em 0)
+     * @return long
+     * @throws DatabaseException
+     */
+    public long getLong(String column, int row) throws DatabaseException {
+
+        Vector vector = this.vector(column);
+
+        if (ColumnarResult.LONG.equals(vector.type)) {
+            return vector.data.getLong(row * 8);
+        }
+
+        if (ColumnarResult.INT.equals(vector.type)) {
+            return vector.data.getInt(row * 4);
+        }
+
+        throw new DatabaseException("Column '" + column + "' is not an integer column.");
+    }
+
+    /**
+     * Valor numérico da coluna (0 se nulo)
+     *
+     * @param column
+     * @param row Registro (começa em 0)
+     * @return double
+     * @throws DatabaseException
+     */
+    public double getDouble(String column, int row) throws DatabaseException {
+        return this.vector(column).number(row);
+    }
+
+    /**
+     * Valor da coluna STRING
+     *
+     * @param column
+     * @param row Registro (começa em 0)
+     * @return String ou NULL
+     * @throws DatabaseException
+     */
+    public String getString(String column, int row) throws DatabaseException {
+
+        Vector vector = this.vector(column);
+
+        if (vector.isNull(row)) {
+            return null;
+        }
+
+        return ColumnarResult.STRING.equals(vector.type) ? vector.dictionary.get(vector.data.getInt(row * 4)) : String.valueOf(vector.number(row));
+    }
+
+    /**
+     * Total de valores não nulos
+     *
+     * @param column
+     * @return int
+     * @throws DatabaseException
+     */
+    public int count(String column) throws DatabaseException {
+
+        Vector vector = this.vector(column);
+        int count = 0;
+
+        for (int row = 0; row < size; row++) {
+            if (!vector.isNull(row)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Soma dos valores não nulos
+     *
+     * @param column Coluna numérica
+     * @return double
+     * @throws DatabaseException
+     */
+    public double sum(String column) throws DatabaseException {
+
+        Vector vector = this.numeric(column);
+        double sum = 0;
+
+        for (int row = 0; row < size; row++) {
+            if (!vector.isNull(row)) {
+                sum += vector.number(row);
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Menor valor
+     *
+     * @param column Coluna numérica
+     * @return Double ou NULL se não houver valor
+     * @throws DatabaseException
+     */
+    public Double min(String column) throws DatabaseException {
+        return this.extreme(column, true);
+    }
+
+    /**
+     * Maior valor
+     *
+     * @param column Coluna numérica
+     * @return Double ou NULL se não houver valor
+     * @throws DatabaseException
+     */
+    public Double max(String column) throws DatabaseException {
+        return this.extreme(column, false);
+    }
+
+    /**
+     * Soma dos valores agrupada pelos valores de uma coluna STRING
+     *
+     * @param groupColumn Coluna STRING do agrupamento
+     * @param valueColumn Coluna numérica somada
+     * @return Map Grupo (NULL para valores nulos) e soma, na ordem em que os
+     * grupos aparecem
+     * @throws DatabaseException
+     */
+    public Map<String, Double> sumBy(String groupColumn, String valueColumn) throws DatabaseException {
+
+        Vector group = this.dictionary(groupColumn);
+        Vector value = this.numeric(valueColumn);
+
+        // Posição 0: valores nulos do agrupamento; grupo N na posição N + 1
+        double[] sums = new double[group.dictionary.size() + 1];
+        boolean[] used = new boolean[sums.length];
+
+        for (int row = 0; row < size; row++) {
+
+            int code = group.isNull(row) ? 0 : group.data.getInt(row * 4) + 1;
+
+            used[code] = true;
+
+            if (!value.isNull(row)) {
+                sums[code] += value.number(row);
+            }
+        }
+
+        Map<String, Double> result = new LinkedHashMap();
+
+        for (int code = 0; code < sums.length; code++) {
+            if (used[code]) {
+                result.put(code == 0 ? null : group.dictionary.get(code - 1), sums[code]);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Total de registros agrupado pelos valores de uma coluna STRING
+     *
+     * @param groupColumn Coluna STRING do agrupamento
+     * @return Map Grupo (NULL para valores nulos) e total
+     * @throws DatabaseException
+     */
+    public Map<String, Integer> countBy(String groupColumn) throws DatabaseException {
+
+        Vector group = this.dictionary(groupColumn);
+        int[] counts = new int[group.dictionary.size() + 1];
+
+        for (int row = 0; row < size; row++) {
+            counts[group.isNull(row) ? 0 : group.data.getInt(row * 4) + 1]++;
+        }
+
+        Map<String, Integer> result = new LinkedHashMap();
+
+        for (int code = 0; code < counts.length; code++) {
+            if (counts[code] > 0) {
+                result.put(code == 0 ? null : group.dictionary.get(code - 1), counts[code]);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Memória usada pelos valores, em bytes (aproximado)
+     *
+     * @return long
+     */
+    public long getMemorySize() {
+
+        long bytes = 0;
+
+        for (Vector vector : vectors.values()) {
+
+            bytes += vector.data.capacity() + vector.nulls.length * 8L;
+
+            if (vector.dictionary != null) {
+                for (String value : vector.dictionary) {
+                    bytes += 40 + value.length() * 2L;
+                }
+            }
+        }
+
+        return bytes;
+    }
+
+    private Double extreme(String column, boolean min) throws DatabaseException {
+
+        Vector vector = this.numeric(column);
+        double result = min ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+        boolean found = false;
+
+        for (int row = 0; row < size; row++) {
+
+            if (vector.isNull(row)) {
+                continue;
+            }
+
+            double value = vector.number(row);
+
+            result = min ? Math.min(result, value) : Math.max(result, value);
+            found = true;
+        }
+
+        return found ? result : null;
+    }
+
+    private Vector vector(String column) throws DatabaseException {
+
+        Vector vector = vectors.get(column.toLowerCase().trim());
+
+        if (vector == null) {
+            throw new DatabaseException("Column '" + column + "' not found.");
+        }
+
+        return vector;
+    }
+
+    private Vector numeric(String column) throws DatabaseException {
+
+        Vector vector = this.vector(column);
+
+        if (ColumnarResult.STRING.equals(vector.type)) {
+            throw new DatabaseException("Column '" + column + "' is not numeric.");
+        }
+
+        return vector;
+    }
+
+    private Vector dictionary(String column) throws DatabaseException {
+
+        Vector vector = this.vector(column);
+
+        if (!ColumnarResult.STRING.equals(vector.type)) {
+            throw new DatabaseException("Column '" + column + "' is not a string column.");
+        }
+
+        return vector;
+    }
+
+    /**
+     * Valores de uma coluna
+     */
+    private static final class Vector {
+
+        private final String type;
+        private final int sqlType;
+        private final boolean offHeap;
+        private final int width;
+        private final List<String> dictionary;
+        private final Map<String, Integer> codes;
+
+        private ByteBuffer data;
+        private long[] nulls;
+
+        private Vector(String type, int sqlType, boolean offHeap) {
+
+            this.type = type;
+            this.sqlType = sqlType;
+            this.offHeap = offHeap;
+            this.width = ColumnarResult.LONG.equals(type) || ColumnarResult.DOUBLE.equals(type) ? 8 : 4;
+            this.dictionary = ColumnarResult.STRING.equals(type) ? new ArrayList() : null;
+            this.codes = ColumnarResult.STRING.equals(type) ? new HashMap() : null;
+            this.data = this.allocate(INITIAL_CAPACITY * this.width);
+            this.nulls = new long[INITIAL_CAPACITY / 64];
+        }
+
+        private ByteBuffer allocate(int bytes) {
+            return offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+        }
+
+        private void read(ResultSet rs, int index, int row) throws SQLException {
+
+            if ((row + 1) * width > data.capacity()) {
+
+                ByteBuffer grown = this.allocate(data.capacity() * 2);
+                data.position(0);
+                grown.put(data);
+                data = grown;
+
+                long[] bits = new long[nulls.length * 2];
+                System.arraycopy(nulls, 0, bits, 0, nulls.length);
+                nulls = bits;
+            }
+
+            switch (type) {
+
+                case ColumnarResult.LONG:
+
+                    long value;
+
+                    if (sqlType == Types.DATE) {
+                        java.sql.Date date = rs.getDate(index);
+                        value = date == null ? 0 : date.getTime();
+                    } else if (sqlType == Types.TIMESTAMP) {
+                        Timestamp timestamp = rs.getTimestamp(index);
+                        value = timestamp == null ? 0 : timestamp.getTime();
+                    } else {
+                        value = rs.getLong(index);
+                    }
+
+                    data.putLong(row * 8, value);
+                    break;
+
+                case ColumnarResult.INT:
+                    data.putInt(row * 4, rs.getInt(index));
+                    break;
+
+                case ColumnarResult.DOUBLE:
+                    data.putDouble(row * 8, rs.getDouble(index));
+                    break;
+
+                default:
+
+                    String text = rs.getString(index);
+                    int code = -1;
+
+                    if (text != null) {
+
+                        Integer known = codes.get(text);
+
+                        if (known == null) {
+                            known = dictionary.size();
+                            dictionary.add(text);
+                            codes.put(text, known);
+                        }
+
+                        code = known;
+                    }
+
+                    data.putInt(row * 4, code);
+                    break;
+            }
+
+            if (rs.wasNull()) {
+                nulls[row >> 6] |= 1L << (row & 63);
+            }
+        }
+
+        private boolean isNull(int row) {
+            return (nulls[row >> 6] & (1L << (row & 63))) != 0;
+        }
+
+        private double number(int row) {
+            switch (type) {
+                case ColumnarResult.LONG:
+                    return data.getLong(row * 8);
+                case ColumnarResult.DOUBLE:
+                    return data.getDouble(row * 8);
+                default:
+                    return data.getInt(row * 4);
+            }
+        }
+    }
+}
@@ -45,7 +45,7 @@ public class Connection {
      * @return Properties
      * @throws DatabaseException
      */
-    private static Properties getProperties() throws DatabaseException {
+    static Properties getProperties() throws DatabaseException {
 
         File file = new File("config" + File.separator + "database" + File.separator + "connection.properties");
 
@@ -61,9 +61,18 @@ public class Connection {
             properties.put("database", "data.fdb");
             properties.put("username", "sysdba");
             properties.put("password", "masterkey");
+            properties.put("metadata_refresh", "0");
+            properties.put("count_ttl", "60");
+            properties.put("replicas", "");
+            properties.put("replica_policy", Replicas.ROUND_ROBIN);
+            properties.put("replica_eject", "30");
+            properties.put("replica_sticky", "0");
+            properties.put("async_threads", "8");
+            properties.put("id_block", "0");
+            properties.put("slow_query", "1000");
 
             try {
-                properties.store(new FileOutputStream(file), "Dados para conexão com o banco de dados\nEx. de URL: \"jdbc:firebirdsql:localhost:\" | \"jdbc:derby:\" | \"jdbc:mysql://localhost:3306/\" | \"jdbc:postgresql://localhost:5432/\"\n");
+                properties.store(new FileOutputStream(file), "Dados para conexão com o banco de dados\nEx. de URL: \"jdbc:firebirdsql:localhost:\" | \"jdbc:derby:\" | \"jdbc:mysql://localhost:3306/\" | \"jdbc:postgresql://localhost:5432/\"\nmetadata_refresh: intervalo em segundos para verificar alterações no banco de dados (0 desativa)\ncount_ttl: validade em segundos dos totais em memória (Count.CACHED)\nreplicas: URLs das réplicas somente leitura separadas por vírgula\nreplica_policy: round_robin | least_outstanding\nreplica_eject: segundos sem usar a réplica depois de uma falha\nreplica_sticky: segundos lendo do principal depois de uma gravação\nasync_threads: threads para consultas assíncronas (Async)\nid_block: IDs reservados por vez na sequência da tabela (IdAllocator, 0 desativa)\nslow_query: milissegundos para registrar a instrução como lenta (QueryStats, 0 desativa)\n");
             } catch (IOException ex) {
                 throw new DatabaseException(ex);
             }
@@ -88,19 +97,57 @@ public class Connection {
      */
     public static java.sql.Connection open() throws DatabaseException {
 
-        java.sql.Connection connection = null;
-        Properties properties = Connection.getProperties();
+        java.sql.Connection connection = Connection.connect();
 
-        try {
+        Connection.bootstrap(connection);
+
+        return connection;
+    }
+
+    /**
+     * Abre conexão somente para leitura: usa uma das réplicas do
+     * 'connection.properties' (<i>replicas</i>) ou o banco de dados principal
+     * se não houver réplica disponível
+     *
+     * @return java.sql.Connection
+     * @throws DatabaseException
+     */
+    public static java.sql.Connection openRead() throws DatabaseException {
+
+        java.sql.Connection connection = Replicas.connect();
+
+        if (connection == null) {
+            return Connection.open();
+        }
+
+        Connection.bootstrap(connection);
+
+        return connection;
+    }
+
+    /**
+     * Cria os arquivos de metadados e do ORM, se não existirem, e inicia as
+     * tarefas de segundo plano
+     */
+    private static void bootstrap(java.sql.Connection connection) throws DatabaseException {
 
-            connection = DriverManager.getConnection(Connection.getURL(), properties.getProperty("username"), properties.getProperty("password"));
+        try {
 
-            File file = new File("config" + File.separator + "database" + File.separator + "metadata.json");
+            File file = Metadata.getFile();
 
             if (!file.exists()) {
                 Metadata.createMetadata(file, connection);
             }
 
+            EntityCache.startPreload();
+            String refresh = Connection.getProperties().getProperty("metadata_refresh", "0").trim();
+
+            try {
+                SchemaWatcher.start(Long.parseLong(refresh));
+            } catch (NumberFormatException ex) {
+                System.err.println("Propriedade 'metadata_refresh' inválida: " + refresh);
+            }
+
             file = new File("config" + File.separator + "orm.json");
 
             if (!file.exists()) {
@@ -146,11 +193,26 @@ public class Connection {
                 }
             }
 
-        } catch (IOException | SQLException ex) {
+        } catch (IOException ex) {
             throw new DatabaseException(ex);
         }
+    }
 
-        return connection;
+    /**
+     * Abre conexão com banco de dados sem verificar os arquivos de metadados
+     *
+     * @return java.sql.Connection
+     * @throws DatabaseException
+     */
+    static java.sql.Connection connect() throws DatabaseException {
+
+        Properties properties = Connection.getProperties();
+
+        try {
+            return DriverManager.getConnection(Connection.getURL(), properties.getProperty("username"), properties.getProperty("password"));
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
     }
 
     /**
@@ -19,8 +19,23 @@ package br.com.ctecinf.database;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Total de registros da tabela.<br>
+ * <i>Count.EXACT</i>: COUNT na tabela (padrão)<br>
+ * <i>Count.CACHED</i>: total mantido em memória, ajustado pelas inclusões e
+ * exclusões do <i>Update</i> e recontado depois de 'count_ttl' segundos
+ * ('connection.properties'). A recontagem é feita no banco principal, uma por
+ * tabela (as demais chamadas esperam o resultado); se houver gravação durante
+ * a recontagem, o total não é guardado e a próxima chamada conta de novo.<br>
+ * <i>Count.APPROXIMATE</i>: estatística do catálogo (PostgreSQL e MySQL); nos
+ * outros bancos usa o total em memória<br>
+ * Com <i>Clause</i> a contagem é sempre exata.
  *
  * @author Cássio Conceição
  * @version 2021
@@ -28,10 +43,19 @@ import java.sql.Statement;
  */
 public class Count implements AutoCloseable {
 
+    public static final String EXACT = "exact";
+    public static final String CACHED = "cached";
+    public static final String APPROXIMATE = "approximate";
+
+    private static final Map<String, Total> TOTALS = new ConcurrentHashMap();
+    private static final Map<String, Recount> RECOUNTS = new ConcurrentHashMap();
+
     private String table;
     private java.sql.Connection connection;
     private Statement st;
 
+    private Clause clause;
+    private String mode;
     private String query;
 
     /**
@@ -41,15 +65,20 @@ public class Count implements AutoCloseable {
      * @throws DatabaseException
      */
     public Count(String table) throws DatabaseException {
+        this(table, null);
+    }
 
+    /**
+     * Construtor
+     *
+     * @param table Nome da tabela
+     * @param clause Filtro
+     * @throws DatabaseException
+     */
+    public Count(String table, Clause clause) throws DatabaseException {
         this.table = table.toLowerCase().trim();
-
-        try {
-            connection = Connection.open();
-            st = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-        } catch (SQLException ex) {
-            throw new DatabaseException(ex);
-        }
+        this.clause = clause;
+        this.mode = Count.EXACT;
     }
 
     /**
@@ -61,6 +90,28 @@ public class Count implements AutoCloseable {
         return table;
     }
 
+    /**
+     * Filtro da contagem
+     *
+     * @param clause
+     * @return Count
+     */
+    public Count setClause(Clause clause) {
+        this.clause = clause;
+        return this;
+    }
+
+    /**
+     * Modo da contagem sem filtro
+     *
+     * @param mode Count.EXACT | Count.CACHED | Count.APPROXIMATE
+     * @return Count
+     */
+    public Count setMode(String mode) {
+        this.mode = mode == null ? Count.EXACT : mode;
+        return this;
+    }
+
     /**
      * Conta total de registros de uma tabela
      *
@@ -69,15 +120,22 @@ public class Count implements AutoCloseable {
      */
     public int getTotal() throws DatabaseException {
 
-        try (ResultSet rs = st.executeQuery("SELECT COUNT(" + Metadata.getPrimaryKeyName(table) + ") FROM " + table)) {
-            if (rs.next()) {
-                return rs.getInt(1);
-            }
-        } catch (SQLException ex) {
-            throw new DatabaseException(ex);
+        if (clause != null && !clause.toString().isEmpty()) {
+            return (int) this.count(clause);
         }
 
-        return 0;
+        switch (mode) {
+
+            case Count.CACHED:
+                return (int) this.getCached();
+
+            case Count.APPROXIMATE:
+                Long total = this.getApproximate();
+                return (int) (total == null ? this.getCached() : total);
+
+            default:
+                return (int) this.count(null);
+        }
     }
 
     /**
@@ -88,7 +146,9 @@ public class Count implements AutoCloseable {
      */
     public int getMaxId() throws DatabaseException {
 
-        try (ResultSet rs = st.executeQuery("SELECT MAX(" + Metadata.getPrimaryKeyName(table) + ") FROM " + table)) {
+        query = "SELECT MAX(" + Metadata.getPrimaryKeyName(table) + ") FROM " + table;
+
+        try (ResultSet rs = this.getStatement().executeQuery(query)) {
             if (rs.next()) {
                 return rs.getInt(1);
             }
@@ -99,6 +159,186 @@ public class Count implements AutoCloseable {
         return 0;
     }
 
+    /**
+     * Ajusta o total em memória depois da gravação (chamado pelo
+     * <i>Update</i>)
+     *
+     * @param table
+     * @param operation Update.INSERT | Update.UPDATE | Update.DELETE
+     * @param rows Registros afetados
+     */
+    static void changed(String table, String operation, int rows) {
+
+        if (rows <= 0) {
+            return;
+        }
+
+        // A recontagem em andamento pode ou não ver esta gravação
+        Recount recount = RECOUNTS.get(table.toLowerCase().trim());
+
+        if (recount != null) {
+            recount.changed = true;
+        }
+
+        Total total = TOTALS.get(table.toLowerCase().trim());
+
+        if (total == null) {
+            return;
+        }
+
+        if (Update.INSERT.equals(operation)) {
+            total.value.addAndGet(rows);
+        } else if (Update.DELETE.equals(operation)) {
+            total.value.addAndGet(-rows);
+        } else if (Update.UPSERT.equals(operation)) {
+            // Não se sabe se incluiu ou alterou: conta de novo
+            TOTALS.remove(table.toLowerCase().trim());
+        }
+    }
+
+    /**
+     * Descarta os totais em memória
+     */
+    public static void clear() {
+
+        for (Recount recount : RECOUNTS.values()) {
+            recount.changed = true;
+        }
+
+        TOTALS.clear();
+    }
+
+    private long count(Clause clause) throws DatabaseException {
+        return this.count(this.getStatement(), clause);
+    }
+
+    private long count(Statement statement, Clause clause) throws DatabaseException {
+
+        String pk = Metadata.getPrimaryKeyName(table);
+
+        if (clause == null) {
+            query = "SELECT COUNT(" + pk + ") FROM " + table;
+        } else {
+            // Mesmos JOINs da Query, para filtros nas tabelas referenciadas
+            query = "SELECT COUNT(" + table + "." + pk + ") FROM " + table + QueryTemplate.get(table).getJoin() + " WHERE " + clause;
+        }
+
+        long start = System.nanoTime();
+
+        try (ResultSet rs = statement.executeQuery(query)) {
+
+            long total = rs.next() ? rs.getLong(1) : 0;
+
+            QueryStats.executed(query, System.nanoTime() - start, 1);
+
+            return total;
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
+
+    private long getCached() throws DatabaseException {
+
+        Total total = TOTALS.get(table);
+
+        if (total != null && total.expires >= System.currentTimeMillis()) {
+            return total.value.get();
+        }
+
+        Recount recount = new Recount();
+        Recount running = RECOUNTS.putIfAbsent(table, recount);
+
+        // Outra chamada já está contando: espera o resultado
+        if (running != null) {
+            try {
+                return running.result.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new DatabaseException(ex);
+            } catch (ExecutionException ex) {
+                throw ex.getCause() instanceof DatabaseException ? (DatabaseException) ex.getCause() : new DatabaseException(ex.getCause());
+            }
+        }
+
+        try {
+
+            long ttl = Long.parseLong(Connection.getProperties().getProperty("count_ttl", "60").trim()) * 1000;
+            long value;
+
+            // No principal: as gravações somadas depois também são do principal
+            try (java.sql.Connection primary = Connection.open(); Statement statement = primary.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                Async.prepare(statement);
+                value = this.count(statement, null);
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+
+            // Gravação durante a contagem: não se sabe se foi contada
+            if (!recount.changed) {
+                total = new Total(System.currentTimeMillis() + ttl);
+                total.value.set(value);
+                TOTALS.put(table, total);
+            }
+
+            recount.result.complete(value);
+
+            return value;
+
+        } catch (DatabaseException | RuntimeException ex) {
+            recount.result.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            RECOUNTS.remove(table, recount);
+        }
+    }
+
+    private Long getApproximate() throws DatabaseException {
+
+        String url = Connection.getURL();
+
+        if (url.contains("postgres")) {
+            query = "SELECT reltuples FROM pg_class WHERE oid = to_regclass('" + table + "')";
+        } else if (url.contains("mysql")) {
+            query = "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND LOWER(TABLE_NAME) = '" + table + "'";
+        } else {
+            return null;
+        }
+
+        try (ResultSet rs = this.getStatement().executeQuery(query)) {
+
+            if (rs.next()) {
+
+                long total = rs.getLong(1);
+
+                // reltuples = -1: tabela nunca analisada
+                if (!rs.wasNull() && total >= 0) {
+                    return total;
+                }
+            }
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+
+        return null;
+    }
+
+    private Statement getStatement() throws DatabaseException {
+
+        if (st == null) {
+            try {
+                connection = Connection.openRead();
+                st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                Async.prepare(st);
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+
+        return st;
+    }
+
     @Override
     public void close() throws DatabaseException {
 
@@ -123,4 +363,26 @@ public class Count implements AutoCloseable {
     public String toString() {
         return query;
     }
+
+    /**
+     * Recontagem em andamento de uma tabela
+     */
+    private static final class Recount {
+
+        private final CompletableFuture<Long> result = new CompletableFuture();
+        private volatile boolean changed;
+    }
+
+    /**
+     * Total em memória de uma tabela
+     */
+    private static final class Total {
+
+        private final AtomicLong value = new AtomicLong();
+        private final long expires;
+
+        private Total(long expires) {
+            this.expires = expires;
+        }
+    }
 }
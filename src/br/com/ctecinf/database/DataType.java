@@ -292,10 +292,25 @@ public class DataType {
      * @throws DatabaseException
      */
     public static void setValue(PreparedStatement ps, int index, Object value) throws DatabaseException {
-
         try {
+            DataType.setValue(ps, index, value, ps.getMetaData().getColumnType(index));
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
 
-            int type = ps.getMetaData().getColumnType(index);
+    /**
+     * Atribui valor ao parâmetro pelo tipo da coluna
+     *
+     * @param ps
+     * @param index Posição do parâmetro (começa em 1)
+     * @param value
+     * @param type Tipo da coluna (java.sql.Types)
+     * @throws DatabaseException
+     */
+    public static void setValue(PreparedStatement ps, int index, Object value, int type) throws DatabaseException {
+
+        try {
 
             if (value == null) {
                 ps.setNull(index, type);
@@ -466,4 +481,86 @@ public class DataType {
             throw new DatabaseException(ex);
         }
     }
+
+    /**
+     * Pega o valor da coluna no <i>ResultSet</i> pelo índice, usando o tipo
+     * de dado já conhecido da coluna
+     *
+     * @param rs
+     * @param index Índice da coluna
+     * @param type Tipo da coluna (java.sql.Types)
+     * @return Object
+     * @throws DatabaseException
+     */
+    public static Object getValue(ResultSet rs, int index, int type) throws DatabaseException {
+
+        try {
+
+            Object value;
+
+            switch (type) {
+
+                case Types.BIGINT:
+                    value = rs.getLong(index);
+                    break;
+                case Types.BIT:
+                    value = rs.getBoolean(index);
+                    break;
+                case Types.BLOB:
+                    value = rs.getBlob(index);
+                    break;
+                case Types.BOOLEAN:
+                    value = rs.getBoolean(index);
+                    break;
+                case Types.DATE:
+                    value = rs.getDate(index);
+                    break;
+                case Types.DECIMAL:
+                    value = rs.getBigDecimal(index);
+                    break;
+                case Types.DOUBLE:
+                    value = rs.getDouble(index);
+                    break;
+                case Types.FLOAT:
+                    value = rs.getFloat(index);
+                    break;
+                case Types.INTEGER:
+                    value = rs.getInt(index);
+                    break;
+                case Types.SMALLINT:
+                    value = rs.getBoolean(index);
+                    break;
+                case Types.TIME:
+                    value = rs.getTime(index);
+                    break;
+                case Types.TIMESTAMP:
+                    value = rs.getTimestamp(index);
+                    break;
+                case Types.TINYINT:
+                    value = rs.getBoolean(index);
+                    break;
+                case Types.NVARCHAR:
+                    value = rs.getString(index);
+                    break;
+                case Types.CHAR:
+                case Types.LONGNVARCHAR:
+                case Types.LONGVARCHAR:
+                case Types.NCHAR:
+                case Types.VARCHAR:
+                    value = rs.getString(index);
+                    if (value != null) {
+                        value = value.toString().trim();
+                    }
+                    break;
+                default:
+                    value = rs.getObject(index);
+                    break;
+            }
+
+            return rs.wasNull() ? null : value;
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
 }
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import br.com.ctecinf.json.JSONObject;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache de registros por (tabela, chave primária) para tabelas de consulta
+ * (municipio, unidade, cfop, ...), usado na expansão das chaves estrangeiras
+ * da <i>Query</i>.<br>
+ * Ativado por tabela no 'orm.json':<br>
+ * <code>"cache":{"size":"5000", "ttl":"600", "preload":"true"}</code><br>
+ * <i>size</i>: máximo de registros (LRU), <i>ttl</i>: segundos de validade (0
+ * não expira), <i>preload</i>: carrega a tabela inteira na inicialização.<br>
+ * Registros lidos de réplicas não entram no cache: poderiam estar atrasados
+ * em relação à última gravação. Registros lidos antes de uma gravação da
+ * tabela (<i>generation</i> alterada durante a leitura) também não entram.
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class EntityCache {
+
+    private static final int DEFAULT_SIZE = 1000;
+
+    private static final Map<String, Region> REGIONS = new ConcurrentHashMap();
+
+    /**
+     * Contador de invalidações por tabela (mantido quando a região é
+     * descartada)
+     */
+    private static final Map<String, AtomicLong> GENERATIONS = new ConcurrentHashMap();
+    private static final AtomicBoolean PRELOADED = new AtomicBoolean();
+
+    private EntityCache() {
+    }
+
+    /**
+     * Verifica se a tabela tem cache configurado
+     *
+     * @param table
+     * @return boolean
+     * @throws DatabaseException
+     */
+    public static boolean isEnabled(String table) throws DatabaseException {
+        return ORM.getCache(table) != null;
+    }
+
+    /**
+     * Registro do cache
+     *
+     * @param table
+     * @param key Valor da chave primária
+     * @return JSONObject Cópia do registro ou NULL se não estiver no cache
+     * @throws DatabaseException
+     */
+    public static JSONObject get(String table, Object key) throws DatabaseException {
+
+        Region region = EntityCache.getRegion(table);
+
+        if (region == null || key == null) {
+            return null;
+        }
+
+        JSONObject data = region.get(key.toString());
+
+        if (data == null) {
+            return null;
+        }
+
+        JSONObject copy = new JSONObject();
+        copy.putAll(data);
+
+        return copy;
+    }
+
+    /**
+     * Guarda o registro no cache
+     *
+     * @param table
+     * @param key Valor da chave primária
+     * @param data Registro
+     * @throws DatabaseException
+     */
+    public static void put(String table, Object key, JSONObject data) throws DatabaseException {
+
+        EntityCache.put(table, key, data, -1);
+    }
+
+    /**
+     * Guarda o registro lido do banco de dados no cache, se a tabela não foi
+     * invalidada desde o início da leitura
+     *
+     * @param table
+     * @param key Valor da chave primária
+     * @param data Registro
+     * @param generation Valor de <i>generation(table)</i> antes da leitura ou
+     * -1 para guardar sempre
+     * @throws DatabaseException
+     */
+    static void put(String table, Object key, JSONObject data, long generation) throws DatabaseException {
+
+        Region region = EntityCache.getRegion(table);
+
+        if (region != null && key != null && data != null) {
+            JSONObject copy = new JSONObject();
+            copy.putAll(data);
+            region.put(key.toString(), copy, generation < 0 ? null : EntityCache.counter(table), generation);
+        }
+    }
+
+    /**
+     * Contador de invalidações da tabela, lido antes do SELECT e informado em
+     * <i>put</i>: uma gravação entre a leitura e o <i>put</i> descarta o
+     * registro lido
+     *
+     * @param table
+     * @return long
+     */
+    static long generation(String table) {
+        return EntityCache.counter(table).get();
+    }
+
+    /**
+     * Remove o registro do cache
+     *
+     * @param table
+     * @param key Valor da chave primária
+     */
+    public static void invalidate(String table, Object key) {
+
+        // Antes de remover: um put em andamento vê o contador alterado
+        EntityCache.counter(table).incrementAndGet();
+
+        Region region = REGIONS.get(table.toLowerCase().trim());
+
+        if (region != null && key != null) {
+            region.remove(key.toString());
+        }
+    }
+
+    /**
+     * Remove todos os registros da tabela do cache
+     *
+     * @param table
+     */
+    public static void invalidate(String table) {
+        EntityCache.counter(table).incrementAndGet();
+        REGIONS.remove(table.toLowerCase().trim());
+    }
+
+    /**
+     * Remove todos os registros das tabelas do cache
+     *
+     * @param tables
+     */
+    public static void invalidate(Collection<String> tables) {
+        for (String table : tables) {
+            EntityCache.invalidate(table);
+        }
+    }
+
+    /**
+     * Esvazia o cache
+     */
+    public static void clear() {
+
+        for (AtomicLong counter : GENERATIONS.values()) {
+            counter.incrementAndGet();
+        }
+
+        REGIONS.clear();
+    }
+
+    /**
+     * Carrega as tabelas com <i>"preload":"true"</i>
+     *
+     * @throws DatabaseException
+     */
+    public static void preload() throws DatabaseException {
+
+        for (String table : Metadata.getTables()) {
+
+            JSONObject config = ORM.getCache(table);
+
+            if (config == null || !Boolean.parseBoolean(config.getStringValue("preload"))) {
+                continue;
+            }
+
+            QueryTemplate template = QueryTemplate.get(table);
+            String pk = Metadata.requireTable(table).getPrimaryKey();
+            long generation = EntityCache.generation(table);
+
+            try (java.sql.Connection connection = Connection.open(); Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY); ResultSet rs = st.executeQuery(template.getFlatQuery())) {
+
+                RowMapper mapper = null;
+
+                while (rs.next()) {
+
+                    if (mapper == null) {
+                        mapper = template.getFlatMapper(rs);
+                    }
+
+                    JSONObject data = mapper.map(rs);
+                    EntityCache.put(table, data.get(pk), data, generation);
+                }
+
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+    }
+
+    /**
+     * Executa <i>preload()</i> uma única vez em segundo plano
+     */
+    static void startPreload() {
+
+        if (!PRELOADED.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                EntityCache.preload();
+            } catch (DatabaseException ex) {
+                System.err.println(ex);
+            }
+        }, "entity-cache-preload");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static AtomicLong counter(String table) {
+        return GENERATIONS.computeIfAbsent(table.toLowerCase().trim(), (k) -> new AtomicLong());
+    }
+
+    private static Region getRegion(String table) throws DatabaseException {
+
+        table = table.toLowerCase().trim();
+
+        Region region = REGIONS.get(table);
+
+        if (region == null) {
+
+            JSONObject config = ORM.getCache(table);
+
+            if (config == null) {
+                return null;
+            }
+
+            String size = config.getStringValue("size");
+            String ttl = config.getStringValue("ttl");
+
+            region = new Region(size == null ? DEFAULT_SIZE : Integer.parseInt(size.trim()), ttl == null ? 0 : Long.parseLong(ttl.trim()) * 1000);
+
+            Region previous = REGIONS.putIfAbsent(table, region);
+
+            if (previous != null) {
+                region = previous;
+            }
+        }
+
+        return region;
+    }
+
+    /**
+     * Registros de uma tabela, com descarte do menos usado e validade
+     */
+    private static final class Region {
+
+        private final long ttl;
+        private final LinkedHashMap<String, Item> entries;
+
+        private Region(int size, long ttl) {
+
+            this.ttl = ttl;
+            this.entries = new LinkedHashMap<String, Item>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Item> eldest) {
+                    return size() > size;
+                }
+            };
+        }
+
+        private synchronized JSONObject get(String key) {
+
+            Item entry = this.entries.get(key);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry.expires > 0 && entry.expires < System.currentTimeMillis()) {
+                this.entries.remove(key);
+                return null;
+            }
+
+            return entry.data;
+        }
+
+        /**
+         * Verifica o contador com a região bloqueada: a invalidação incrementa
+         * o contador e depois remove com a região bloqueada
+         */
+        private synchronized void put(String key, JSONObject data, AtomicLong counter, long generation) {
+
+            if (counter != null && counter.get() != generation) {
+                return;
+            }
+
+            this.entries.put(key, new Item(data, this.ttl > 0 ? System.currentTimeMillis() + this.ttl : 0));
+        }
+
+        private synchronized void remove(String key) {
+            this.entries.remove(key);
+        }
+    }
+
+    private static final class Item {
+
+        private final JSONObject data;
+        private final long expires;
+
+        private Item(JSONObject data, long expires) {
+            this.data = data;
+            this.expires = expires;
+        }
+    }
+}
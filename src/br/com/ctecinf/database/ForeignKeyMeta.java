@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+/**
+ * Metadados imutáveis de uma chave estrangeira
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class ForeignKeyMeta {
+
+    private final String column;
+    private final String referencedTable;
+
+    /**
+     * Construtor
+     *
+     * @param column Coluna da tabela
+     * @param referencedTable Tabela referenciada
+     */
+    public ForeignKeyMeta(String column, String referencedTable) {
+        this.column = column;
+        this.referencedTable = referencedTable;
+    }
+
+    /**
+     * Coluna da tabela
+     *
+     * @return String
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * Tabela referenciada
+     *
+     * @return String
+     */
+    public String getReferencedTable() {
+        return referencedTable;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (!(obj instanceof ForeignKeyMeta)) {
+            return false;
+        }
+
+        ForeignKeyMeta f = (ForeignKeyMeta) obj;
+
+        return column.equals(f.column) && referencedTable.equals(f.referencedTable);
+    }
+
+    @Override
+    public int hashCode() {
+        return column.hashCode() * 31 + referencedTable.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return column + " -> " + referencedTable;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reserva de IDs em bloco na sequência da tabela: uma chamada
+ * <i>GEN_ID(seq, N)</i> (Firebird) ou <i>nextval</i> (Postgres) reserva N
+ * IDs, entregues em memória sem bloqueio. Quando restar 1/4 do bloco, o
+ * próximo é reservado em segundo plano.<br>
+ * Ativado por 'id_block' no 'connection.properties' (tamanho do bloco, 0
+ * desativa). IDs reservados e não usados ficam sem uso quando a aplicação é
+ * encerrada.
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class IdAllocator {
+
+    private static final Map<String, IdAllocator> ALLOCATORS = new ConcurrentHashMap();
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor((Runnable r) -> {
+        Thread thread = new Thread(r, "id-allocator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Marca as tabelas sem sequência
+     */
+    private static final IdAllocator NONE = new IdAllocator(null, null, false, 0);
+
+    private final String table;
+    private final String sequence;
+    private final boolean firebird;
+    private final int size;
+
+    private final AtomicReference<Block> spare = new AtomicReference();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    private volatile Block current = new Block(new long[0]);
+
+    private IdAllocator(String table, String sequence, boolean firebird, int size) {
+        this.table = table;
+        this.sequence = sequence;
+        this.firebird = firebird;
+        this.size = size;
+    }
+
+    /**
+     * Verifica se os IDs da tabela são reservados em bloco
+     *
+     * @param table
+     * @return boolean
+     * @throws DatabaseException
+     */
+    public static boolean isEnabled(String table) throws DatabaseException {
+        return IdAllocator.get(table) != NONE;
+    }
+
+    /**
+     * Próximo ID da tabela
+     *
+     * @param table
+     * @return Long ID ou NULL se a tabela não tem reserva em bloco (o banco de
+     * dados gera o ID na inclusão)
+     * @throws DatabaseException
+     */
+    public static Long next(String table) throws DatabaseException {
+
+        IdAllocator allocator = IdAllocator.get(table);
+
+        return allocator == NONE ? null : allocator.allocate();
+    }
+
+    /**
+     * Descarta os blocos reservados das tabelas (sequência alterada ou
+     * recriada)
+     *
+     * @param tables
+     */
+    public static void invalidate(Collection<String> tables) {
+        for (String table : tables) {
+            ALLOCATORS.remove(table.toLowerCase().trim());
+        }
+    }
+
+    /**
+     * Descarta os blocos reservados
+     */
+    public static void clear() {
+        ALLOCATORS.clear();
+    }
+
+    private static IdAllocator get(String table) throws DatabaseException {
+
+        String key = table.toLowerCase().trim();
+
+        IdAllocator allocator = ALLOCATORS.get(key);
+
+        if (allocator == null) {
+            allocator = IdAllocator.create(key);
+            IdAllocator previous = ALLOCATORS.putIfAbsent(key, allocator);
+            allocator = previous == null ? allocator : previous;
+        }
+
+        return allocator;
+    }
+
+    private static IdAllocator create(String table) throws DatabaseException {
+
+        int size = Integer.parseInt(Connection.getProperties().getProperty("id_block", "0").trim());
+        String url = Connection.getURL().toLowerCase();
+
+        if (size <= 0) {
+            return NONE;
+        }
+
+        if (url.contains("firebird")) {
+            String sequence = Metadata.getSequenceName(table);
+            return sequence == null || sequence.isEmpty() ? NONE : new IdAllocator(table, sequence, true, size);
+        }
+
+        if (url.contains("postgres")) {
+
+            String pk = Metadata.getPrimaryKeyName(table);
+
+            try (java.sql.Connection connection = Connection.connect(); Statement st = connection.createStatement(); ResultSet rs = st.executeQuery("SELECT pg_get_serial_sequence('" + table + "', '" + pk + "')")) {
+
+                String sequence = rs.next() ? rs.getString(1) : null;
+
+                return sequence == null ? NONE : new IdAllocator(table, sequence, false, size);
+
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+
+        // Mysql e Derby: colunas de identidade, sem sequência
+        return NONE;
+    }
+
+    private Long allocate() throws DatabaseException {
+
+        while (true) {
+
+            Block block = current;
+            Long id = block.take();
+
+            if (block.ids.length > 0 && block.remaining() <= size / 4) {
+                this.refill();
+            }
+
+            if (id != null) {
+                return id;
+            }
+
+            synchronized (this) {
+                if (current == block) {
+                    Block next = spare.getAndSet(null);
+                    current = next == null ? this.reserve() : next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserva o próximo bloco em segundo plano
+     */
+    private void refill() {
+
+        if (spare.get() != null || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+
+        EXECUTOR.execute(() -> {
+            try {
+                spare.compareAndSet(null, this.reserve());
+            } catch (DatabaseException ex) {
+                System.err.println(ex);
+            } finally {
+                refilling.set(false);
+            }
+        });
+    }
+
+    private Block reserve() throws DatabaseException {
+
+        long[] ids = new long[size];
+
+        try (java.sql.Connection connection = Connection.connect(); Statement st = connection.createStatement()) {
+
+            if (firebird) {
+
+                try (ResultSet rs = st.executeQuery("SELECT GEN_ID(" + sequence + ", " + size + ") FROM RDB$DATABASE")) {
+
+                    rs.next();
+
+                    long last = rs.getLong(1);
+
+                    for (int i = 0; i < size; i++) {
+                        ids[i] = last - size + 1 + i;
+                    }
+                }
+
+            } else {
+
+                try (ResultSet rs = st.executeQuery("SELECT nextval('" + sequence + "') FROM generate_series(1, " + size + ")")) {
+
+                    int i = 0;
+
+                    while (rs.next() && i < size) {
+                        ids[i++] = rs.getLong(1);
+                    }
+                }
+            }
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+
+        return new Block(ids);
+    }
+
+    @Override
+    public String toString() {
+        return table + " (" + sequence + ")";
+    }
+
+    /**
+     * Bloco de IDs reservados
+     */
+    private static final class Block {
+
+        private final long[] ids;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private Block(long[] ids) {
+            this.ids = ids;
+        }
+
+        private Long take() {
+            int i = next.getAndIncrement();
+            return i < ids.length ? ids[i] : null;
+        }
+
+        private int remaining() {
+            return Math.max(0, ids.length - next.get());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <i>to_string</i> do 'orm.json' dividido em trechos fixos e campos, com os
+ * campos já ligados à posição do valor no <i>RowMapper</i>
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+final class LabelTemplate {
+
+    private final String[] texts;
+    private final int[] indexes;
+    private final int length;
+
+    private LabelTemplate(List<String> texts, List<Integer> indexes, int length) {
+
+        this.texts = texts.toArray(new String[texts.size()]);
+        this.indexes = new int[indexes.size()];
+        this.length = length;
+
+        for (int i = 0; i < this.indexes.length; i++) {
+            this.indexes[i] = indexes.get(i);
+        }
+    }
+
+    /**
+     * Campos <i>{nome}</i> do template
+     *
+     * @param template <i>to_string</i> da tabela
+     * @return Set Vazio se não houver template
+     */
+    static Set<String> fields(String template) {
+
+        Set<String> fields = new HashSet();
+
+        if (template == null) {
+            return fields;
+        }
+
+        int open = template.indexOf('{');
+
+        while (open >= 0) {
+
+            int close = template.indexOf('}', open);
+
+            if (close < 0) {
+                break;
+            }
+
+            fields.add(template.substring(open + 1, close).toLowerCase().trim());
+            open = template.indexOf('{', close);
+        }
+
+        return fields;
+    }
+
+    /**
+     * Compila o template. Campos <i>{nome}</i> que não existem no resultado
+     * permanecem como texto.
+     *
+     * @param template <i>to_string</i> da tabela
+     * @param mapper Mapeamento das linhas do resultado
+     * @return LabelTemplate ou NULL se não houver template
+     */
+    static LabelTemplate compile(String template, RowMapper mapper) {
+
+        if (template == null) {
+            return null;
+        }
+
+        List<String> texts = new ArrayList();
+        List<Integer> indexes = new ArrayList();
+
+        StringBuilder text = new StringBuilder();
+        int pos = 0;
+
+        while (pos < template.length()) {
+
+            int open = template.indexOf('{', pos);
+            int close = open < 0 ? -1 : template.indexOf('}', open);
+
+            if (close < 0) {
+                text.append(template.substring(pos));
+                break;
+            }
+
+            text.append(template, pos, open);
+
+            int index = mapper.indexOf(template.substring(open + 1, close));
+
+            if (index < 0) {
+                text.append(template, open, close + 1);
+            } else {
+                texts.add(text.toString());
+                indexes.add(index);
+                text.setLength(0);
+            }
+
+            pos = close + 1;
+        }
+
+        texts.add(text.toString());
+
+        return new LabelTemplate(texts, indexes, template.length());
+    }
+
+    /**
+     * Monta o <i>label</i> da linha
+     *
+     * @param values Valores lidos pelo <i>RowMapper</i>
+     * @return String
+     */
+    String render(Object[] values) {
+
+        StringBuilder sb = new StringBuilder(this.length + 16);
+
+        for (int i = 0; i < this.indexes.length; i++) {
+
+            sb.append(this.texts[i]);
+
+            Object value = values[this.indexes[i]];
+
+            if (value != null) {
+                sb.append(value);
+            }
+        }
+
+        return sb.append(this.texts[this.indexes.length]).toString();
+    }
+}
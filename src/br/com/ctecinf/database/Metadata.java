@@ -24,12 +24,19 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  *
@@ -40,6 +47,7 @@ import java.util.List;
 public class Metadata {
 
     private static JSONObject json;
+    private static volatile Map<String, TableMeta> tables;
 
     /**
      * JSON
@@ -49,7 +57,7 @@ public class Metadata {
      */
     protected static JSONObject get() throws DatabaseException {
 
-        File file = new File("config" + File.separator + "database" + File.separator + "metadata.json");
+        File file = Metadata.getFile();
 
         if (!file.exists()) {
             throw new DatabaseException("File 'metadata.json' not found.");
@@ -66,6 +74,15 @@ public class Metadata {
         return json;
     }
 
+    /**
+     * Arquivo 'config/database/metadata.json'
+     *
+     * @return File
+     */
+    static File getFile() {
+        return new File("config" + File.separator + "database" + File.separator + "metadata.json");
+    }
+
     /**
      * Cria arquivo Metadata
      *
@@ -75,122 +92,289 @@ public class Metadata {
      */
     public static void createMetadata(File file, java.sql.Connection connection) throws DatabaseException {
 
-        try {
+        Metadata.write(file, Catalog.read(connection));
+
+        synchronized (Metadata.class) {
+            json = null;
+            tables = null;
+        }
 
-            StringBuilder metadata = new StringBuilder("{\n");
+        QueryTemplate.clear();
+        IdAllocator.clear();
+    }
+
+    /**
+     * Compara o catálogo do banco de dados com os metadados carregados e
+     * substitui somente as tabelas alteradas, criadas ou removidas. As tabelas
+     * sem alteração mantêm os mesmos objetos.
+     *
+     * @param connection Conexão com o banco de dados
+     * @return Set Tabelas alteradas (vazio se nada mudou)
+     * @throws DatabaseException
+     */
+    public static Set<String> refresh(java.sql.Connection connection) throws DatabaseException {
 
-            List<String> sequences = new ArrayList();
+        List<TableMeta> catalog = Catalog.read(connection);
 
-            if (connection.getMetaData().getURL().toLowerCase().contains("firebird")) {
-                String query = "SELECT RDB$GENERATOR_NAME FROM RDB$GENERATORS";
-                try (Statement st = connection.createStatement(); ResultSet rs = st.executeQuery(query)) {
-                    while (rs.next()) {
-                        sequences.add(rs.getString(1).toLowerCase().trim());
-                    }
+        synchronized (Metadata.class) {
+
+            Map<String, TableMeta> current = Metadata.getSchema();
+            Map<String, TableMeta> schema = new LinkedHashMap();
+            Set<String> changed = new LinkedHashSet();
+
+            for (TableMeta table : catalog) {
+
+                TableMeta old = current.get(table.getName());
+
+                if (table.equals(old)) {
+                    schema.put(table.getName(), old);
+                } else {
+                    schema.put(table.getName(), table);
+                    changed.add(table.getName());
                 }
             }
 
-            try (ResultSet resultSet = connection.getMetaData().getTables(null, null, null, new String[]{"TABLE"})) {
+            for (String table : current.keySet()) {
+                if (!schema.containsKey(table)) {
+                    changed.add(table);
+                }
+            }
 
-                while (resultSet.next()) {
+            if (changed.isEmpty()) {
+                return changed;
+            }
 
-                    String table = resultSet.getString(3).toLowerCase().trim();
+            Metadata.write(Metadata.getFile(), schema.values());
 
-                    metadata.append("  \"").append(table).append("\":{\n");
-                    metadata.append("    \"sequence\":\"");
+            json = null;
+            tables = Collections.unmodifiableMap(schema);
 
-                    if (connection.getMetaData().getURL().toLowerCase().contains("firebird")) {
-                        for (String sequence : sequences) {
-                            if (sequence.contains(table)) {
-                                metadata.append(sequence);
-                                break;
-                            }
-                        }
-                    }
+            Metadata.invalidate(changed, current, tables);
 
-                    metadata.append("\",\n");
+            return changed;
+        }
+    }
 
-                    try (ResultSet rs = connection.getMetaData().getPrimaryKeys(null, null, table)) {
-                        if (rs.next()) {
-                            metadata.append("    \"primary_key\":\"").append(rs.getString(4).trim().toLowerCase()).append("\",\n");
-                        }
+    /**
+     * Descarta os dados gerados a partir dos metadados das tabelas alteradas e
+     * das tabelas que fazem referência a elas
+     *
+     * @param changed Tabelas alteradas
+     * @param before Metadados anteriores
+     * @param after Metadados novos
+     */
+    private static void invalidate(Set<String> changed, Map<String, TableMeta> before, Map<String, TableMeta> after) {
+
+        Set<String> affected = new HashSet(changed);
+
+        for (Map<String, TableMeta> schema : Arrays.asList(before, after)) {
+            for (TableMeta table : schema.values()) {
+                for (ForeignKeyMeta foreignKey : table.getForeignKeys()) {
+                    if (changed.contains(foreignKey.getReferencedTable())) {
+                        affected.add(table.getName());
                     }
+                }
+            }
+        }
 
-                    try (ResultSet rs = connection.getMetaData().getColumns(null, null, table, "%")) {
+        QueryTemplate.invalidate(affected);
+        EntityCache.invalidate(changed);
+        SearchIndex.invalidate(changed);
+        IdAllocator.invalidate(changed);
+    }
 
-                        metadata.append("    \"columns\":[\n");
+    /**
+     * Grava o JSON dos metadados. O arquivo é escrito em um temporário e
+     * depois movido, para que nunca seja lido pela metade.
+     *
+     * @param file
+     * @param schema
+     * @throws DatabaseException
+     */
+    static void write(File file, Collection<TableMeta> schema) throws DatabaseException {
 
-                        while (rs.next()) {
+        StringBuilder metadata = new StringBuilder("{\n");
 
-                            String column = rs.getString(4).trim().toLowerCase();
-                            int type = rs.getInt(5);
-                            String typeName = rs.getString(6);
-                            int length = rs.getInt(7);
-                            boolean notNull = rs.getString(18).toLowerCase().equals("no");
+        int i = 0;
 
-                            metadata.append("        {\n");
-                            metadata.append("          \"name\":\"").append(column).append("\",\n");
-                            metadata.append("          \"type\":\"").append(DataType.parse(type, length)).append("\",\n");
-                            metadata.append("          \"data_type\":\"").append(type).append("\",\n");
-                            metadata.append("          \"type_name\":\"").append(typeName).append("\",\n");
-                            metadata.append("          \"length\":\"").append(length).append("\",\n");
-                            metadata.append("          \"not_null\":\"").append(notNull).append("\"\n");
-                            metadata.append("        }");
+        for (TableMeta table : schema) {
 
-                            if (!rs.isLast()) {
-                                metadata.append(",\n");
-                            } else {
-                                metadata.append("\n");
-                            }
-                        }
+            metadata.append("  \"").append(table.getName()).append("\":{\n");
+            metadata.append("    \"sequence\":\"").append(table.getSequence() == null ? "" : table.getSequence()).append("\",\n");
 
-                        metadata.append("    ],\n");
-                    }
+            if (table.getPrimaryKey() != null) {
+                metadata.append("    \"primary_key\":\"").append(table.getPrimaryKey()).append("\",\n");
+            }
 
-                    try (ResultSet resultSetForeignKey = connection.getMetaData().getImportedKeys(null, null, table)) {
+            metadata.append("    \"columns\":[\n");
 
-                        metadata.append("    \"foreign_key\":{\n");
+            for (ColumnMeta column : table.getColumns()) {
 
-                        while (resultSetForeignKey.next()) {
+                metadata.append("        {\n");
+                metadata.append("          \"name\":\"").append(column.getName()).append("\",\n");
+                metadata.append("          \"type\":\"").append(column.getType()).append("\",\n");
+                metadata.append("          \"data_type\":\"").append(column.getDataType()).append("\",\n");
+                metadata.append("          \"type_name\":\"").append(column.getTypeName()).append("\",\n");
+                metadata.append("          \"length\":\"").append(column.getLength()).append("\",\n");
+                metadata.append("          \"not_null\":\"").append(column.isNotNull()).append("\"\n");
+                metadata.append("        }");
+                metadata.append(column.getIndex() < table.getColumnCount() - 1 ? ",\n" : "\n");
+            }
 
-                            String column = resultSetForeignKey.getString(8).trim().toLowerCase();
-                            String reference = resultSetForeignKey.getString(3).trim().toLowerCase();
+            metadata.append("    ],\n");
+            metadata.append("    \"foreign_key\":{\n");
 
-                            metadata.append("      \"").append(column).append("\":\"").append(reference).append("\"");
+            for (int j = 0; j < table.getForeignKeys().size(); j++) {
 
-                            if (!resultSetForeignKey.isLast()) {
-                                metadata.append(",\n");
-                            } else {
-                                metadata.append("\n");
-                            }
-                        }
+                ForeignKeyMeta foreignKey = table.getForeignKeys().get(j);
 
-                        metadata.append("    }\n");
-                    }
+                metadata.append("      \"").append(foreignKey.getColumn()).append("\":\"").append(foreignKey.getReferencedTable()).append("\"");
+                metadata.append(j < table.getForeignKeys().size() - 1 ? ",\n" : "\n");
+            }
 
-                    metadata.append("  }");
+            metadata.append("    }\n");
+            metadata.append("  }");
 
-                    if (!resultSet.isLast()) {
-                        metadata.append(",\n");
-                    }
-                }
+            if (++i < schema.size()) {
+                metadata.append(",\n");
             }
+        }
 
-            metadata.append("\n}");
+        metadata.append("\n}");
 
-            if (file.getParentFile() != null && !file.getParentFile().exists()) {
-                file.getParentFile().mkdirs();
+        try {
+
+            File dir = file.getAbsoluteFile().getParentFile();
+
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
             }
 
-            try (PrintWriter p = new PrintWriter(new FileWriter(file, false))) {
+            File tmp = File.createTempFile("metadata", ".tmp", dir);
+
+            try (PrintWriter p = new PrintWriter(new FileWriter(tmp, false))) {
                 p.write(metadata.toString());
             }
 
-        } catch (IOException | SQLException ex) {
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+        } catch (IOException ex) {
             throw new DatabaseException(ex);
         }
     }
 
+    /**
+     * Modelo tipado dos metadados, criado uma única vez a partir do JSON
+     *
+     * @return Map [nome da tabela] : [TableMeta] imutável
+     * @throws DatabaseException
+     */
+    static Map<String, TableMeta> getSchema() throws DatabaseException {
+
+        Map<String, TableMeta> schema = tables;
+
+        if (schema == null) {
+            synchronized (Metadata.class) {
+                if (tables == null) {
+                    tables = Metadata.createSchema(Metadata.get());
+                }
+                schema = tables;
+            }
+        }
+
+        return schema;
+    }
+
+    /**
+     * Converte o JSON dos metadados no modelo tipado
+     *
+     * @param json
+     * @return Map
+     */
+    private static Map<String, TableMeta> createSchema(JSONObject json) {
+
+        Map<String, TableMeta> schema = new LinkedHashMap();
+
+        for (String table : json.keySet()) {
+
+            JSONObject t = json.getJSONObjectValue(table);
+
+            List<ColumnMeta> columns = new ArrayList();
+
+            if (t.getJSONArrayValue("columns") != null) {
+                for (JSONObject c : t.getJSONArrayValue("columns")) {
+                    if (c.getStringValue("name") != null) {
+                        columns.add(new ColumnMeta(
+                                c.getStringValue("name").toLowerCase().trim(),
+                                columns.size(),
+                                c.getStringValue("type"),
+                                Integer.parseInt(c.getStringValue("data_type")),
+                                c.getStringValue("type_name"),
+                                Integer.parseInt(c.getStringValue("length")),
+                                Boolean.parseBoolean(c.getStringValue("not_null"))));
+                    }
+                }
+            }
+
+            List<ForeignKeyMeta> foreignKeys = new ArrayList();
+
+            if (t.getJSONObjectValue("foreign_key") != null) {
+                for (String column : t.getJSONObjectValue("foreign_key").keySet()) {
+                    String reference = t.getJSONObjectValue("foreign_key").getStringValue(column);
+                    if (!column.isEmpty() && reference != null && !reference.isEmpty()) {
+                        foreignKeys.add(new ForeignKeyMeta(column.toLowerCase().trim(), reference.toLowerCase().trim()));
+                    }
+                }
+            }
+
+            schema.put(table, new TableMeta(table, Metadata.emptyToNull(t.getStringValue("sequence")), Metadata.emptyToNull(t.getStringValue("primary_key")), columns, foreignKeys));
+        }
+
+        return Collections.unmodifiableMap(schema);
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.toLowerCase().trim();
+    }
+
+    /**
+     * Metadados da tabela
+     *
+     * @param table
+     * @return TableMeta ou NULL se a tabela não existir
+     * @throws DatabaseException
+     */
+    public static TableMeta getTable(String table) throws DatabaseException {
+
+        if (table == null || table.isEmpty()) {
+            return null;
+        }
+
+        return Metadata.getSchema().get(table.toLowerCase().trim());
+    }
+
+    /**
+     * Metadados da tabela
+     *
+     * @param table
+     * @return TableMeta
+     * @throws DatabaseException Se a tabela não existir
+     */
+    static TableMeta requireTable(String table) throws DatabaseException {
+
+        TableMeta meta = Metadata.getTable(table);
+
+        if (meta == null) {
+            throw new DatabaseException("Table '" + table + "' not found.");
+        }
+
+        return meta;
+    }
+
     /**
      * Nome das tabelas
      *
@@ -198,7 +382,7 @@ public class Metadata {
      * @throws DatabaseException
      */
     public static List<String> getTables() throws DatabaseException {
-        return new ArrayList(Metadata.get().keySet());
+        return new ArrayList(Metadata.getSchema().keySet());
     }
 
     /**
@@ -214,9 +398,7 @@ public class Metadata {
             return null;
         }
 
-        String value = Metadata.get().getJSONObjectValue(table.toLowerCase().trim()).getStringValue("primary_key");
-
-        return value.isEmpty() ? null : value.toLowerCase().trim();
+        return Metadata.requireTable(table).getPrimaryKey();
     }
 
     /**
@@ -232,16 +414,14 @@ public class Metadata {
             return null;
         }
 
-        String value = Metadata.get().getJSONObjectValue(table.toLowerCase().trim()).getStringValue("sequence");
-
-        return value.isEmpty() ? null : value.toLowerCase().trim();
+        return Metadata.requireTable(table).getSequence();
     }
 
     /**
      * Lista das colunas da tabela
      *
      * @param table
-     * @return JSONArray
+     * @return JSONArray Nova lista a cada chamada
      * @throws DatabaseException
      */
     public static JSONArray getColumns(String table) throws DatabaseException {
@@ -250,14 +430,25 @@ public class Metadata {
             return null;
         }
 
-        JSONArray columns = Metadata.get().getJSONObjectValue(table.toLowerCase().trim()).getJSONArrayValue("columns");
+        JSONObject labels = ORM.exists() ? ORM.getLabels(table) : null;
 
-        JSONObject labels = ORM.getLabels(table);
+        JSONArray columns = new JSONArray();
+
+        for (ColumnMeta c : Metadata.requireTable(table).getColumns()) {
+
+            JSONObject column = new JSONObject();
+            column.put("name", c.getName());
+            column.put("type", c.getType());
+            column.put("data_type", String.valueOf(c.getDataType()));
+            column.put("type_name", c.getTypeName());
+            column.put("length", String.valueOf(c.getLength()));
+            column.put("not_null", String.valueOf(c.isNotNull()));
+
+            if (labels != null) {
+                column.put("label", labels.getStringValue(c.getName()));
+            }
 
-        if (labels != null) {
-            columns.stream().forEach((column) -> {
-                column.put("label", labels.getStringValue(column.getStringValue("name")));
-            });
+            columns.add(column);
         }
 
         return columns;
@@ -276,13 +467,7 @@ public class Metadata {
             return null;
         }
 
-        List<String> columns = new ArrayList();
-
-        for (JSONObject j : Metadata.getColumns(table)) {
-            columns.add(j.getStringValue("name"));
-        }
-
-        return columns;
+        return new ArrayList(Metadata.requireTable(table).getColumnNames());
     }
 
     /**
@@ -302,8 +487,8 @@ public class Metadata {
 
         LinkedHashMap<String, Integer> columns = new LinkedHashMap();
 
-        for (JSONObject j : Metadata.getColumns(table)) {
-            columns.put(j.getStringValue("name"), Integer.valueOf(j.getStringValue("data_type")));
+        for (ColumnMeta c : Metadata.requireTable(table).getColumns()) {
+            columns.put(c.getName(), c.getDataType());
         }
 
         return columns;
@@ -324,8 +509,8 @@ public class Metadata {
 
         LinkedHashMap<String, Integer> columns = new LinkedHashMap();
 
-        for (JSONObject j : Metadata.getColumns(table)) {
-            columns.put(j.getStringValue("name"), Integer.valueOf(j.getStringValue("length")));
+        for (ColumnMeta c : Metadata.requireTable(table).getColumns()) {
+            columns.put(c.getName(), c.getLength());
         }
 
         return columns;
@@ -346,8 +531,8 @@ public class Metadata {
 
         LinkedHashMap<String, Boolean> columns = new LinkedHashMap();
 
-        for (JSONObject j : Metadata.getColumns(table)) {
-            columns.put(j.getStringValue("name"), Boolean.valueOf(j.getStringValue("not_null")));
+        for (ColumnMeta c : Metadata.requireTable(table).getColumns()) {
+            columns.put(c.getName(), c.isNotNull());
         }
 
         return columns;
@@ -367,6 +552,12 @@ public class Metadata {
             return null;
         }
 
-        return Metadata.get().getJSONObjectValue(table.toLowerCase().trim()).getJSONObjectValue("foreign_key");
+        JSONObject references = new JSONObject();
+
+        for (ForeignKeyMeta foreignKey : Metadata.requireTable(table).getForeignKeys()) {
+            references.put(foreignKey.getColumn(), foreignKey.getReferencedTable());
+        }
+
+        return references;
     }
 }
@@ -20,6 +20,7 @@ import br.com.ctecinf.json.JSON;
 import br.com.ctecinf.json.JSONObject;
 import br.com.ctecinf.json.JSONException;
 import java.io.File;
+import java.util.Arrays;
 
 /**
  *
@@ -29,7 +30,28 @@ import java.io.File;
  */
 public class ORM {
 
-    private static JSONObject json;
+    /**
+     * <i>JOIN</i> antigo: chave nula liga ao menor ID da tabela referenciada
+     */
+    public static final String JOIN_CASE = "case";
+
+    /**
+     * <i>INNER JOIN</i> pela chave primária
+     */
+    public static final String JOIN_INNER = "inner";
+
+    /**
+     * <i>LEFT JOIN</i> pela chave primária
+     */
+    public static final String JOIN_LEFT = "left";
+
+    /**
+     * Sem <i>JOIN</i>: registros referenciados buscados em lote pela chave
+     */
+    public static final String JOIN_LOOKUP = "lookup";
+
+    private static volatile JSONObject json;
+    private static long lastModified;
 
     /**
      * JSON
@@ -47,6 +69,7 @@ public class ORM {
 
         if (json == null) {
             try {
+                lastModified = file.lastModified();
                 json = JSON.parse(file).get(JSONObject.class);
             } catch (JSONException ex) {
                 throw new DatabaseException(ex);
@@ -56,6 +79,37 @@ public class ORM {
         return json;
     }
 
+    /**
+     * Recarrega o 'orm.json' se o arquivo foi alterado desde a última leitura
+     *
+     * @return boolean TRUE se foi recarregado
+     */
+    static boolean refresh() {
+
+        File file = new File("config", "orm.json");
+
+        if (json == null || !file.exists() || file.lastModified() == lastModified) {
+            return false;
+        }
+
+        json = null;
+        QueryTemplate.clear();
+        EntityCache.clear();
+        SearchIndex.clear();
+        IdAllocator.clear();
+
+        return true;
+    }
+
+    /**
+     * Verifica se o arquivo 'orm.json' já foi criado
+     *
+     * @return boolean
+     */
+    static boolean exists() {
+        return json != null || new File("config", "orm.json").exists();
+    }
+
     /**
      * String de representação da tabela
      *
@@ -89,4 +143,110 @@ public class ORM {
 
         return ORM.get().getJSONObjectValue(table.toLowerCase().trim()).getJSONObjectValue("labels");
     }
+
+    /**
+     * Estratégia de <i>JOIN</i> da chave estrangeira, configurada em
+     * 'orm.json' pela propriedade <i>join</i> da tabela: "case", "inner",
+     * "left" ou "lookup".<br>
+     * Sem configuração: <i>INNER JOIN</i> para colunas obrigatórias e
+     * <i>LEFT JOIN</i> para colunas que aceitam nulo.
+     *
+     * @param table Tabela que faz a referência
+     * @param column Coluna chave estrangeira
+     * @return String ORM.JOIN_CASE | ORM.JOIN_INNER | ORM.JOIN_LEFT |
+     * ORM.JOIN_LOOKUP
+     * @throws DatabaseException
+     */
+    public static String getJoin(String table, String column) throws DatabaseException {
+
+        String join = null;
+
+        if (ORM.exists()) {
+            JSONObject orm = ORM.get().getJSONObjectValue(table.toLowerCase().trim());
+            join = orm == null ? null : orm.getStringValue("join");
+        }
+
+        if (join != null) {
+            switch (join.toLowerCase().trim()) {
+                case JOIN_CASE:
+                case JOIN_INNER:
+                case JOIN_LEFT:
+                case JOIN_LOOKUP:
+                    return join.toLowerCase().trim();
+            }
+        }
+
+        String referencedTable = Metadata.requireTable(table).getReferencedTable(column.toLowerCase().trim());
+
+        // Tabela referenciada em cache: busca pela chave no lugar do JOIN
+        if (referencedTable != null && ORM.getCache(referencedTable) != null) {
+            return JOIN_LOOKUP;
+        }
+
+        ColumnMeta meta = Metadata.requireTable(table).getColumn(column.toLowerCase().trim());
+
+        return meta != null && meta.isNotNull() ? JOIN_INNER : JOIN_LEFT;
+    }
+
+    /**
+     * Configuração do cache de registros da tabela (EntityCache)
+     *
+     * @param table
+     * @return JSONObject {"size", "ttl", "preload"} ou NULL sem cache
+     * @throws DatabaseException
+     */
+    public static JSONObject getCache(String table) throws DatabaseException {
+
+        if (table == null || table.isEmpty() || !ORM.exists()) {
+            return null;
+        }
+
+        JSONObject orm = ORM.get().getJSONObjectValue(table.toLowerCase().trim());
+
+        return orm == null || orm.getValue("cache") == null || !orm.isJSONObjectValue("cache") ? null : orm.getJSONObjectValue("cache");
+    }
+
+    /**
+     * Colunas indexadas para pesquisa em memória (SearchIndex)
+     *
+     * @param table
+     * @return String[] Colunas de <i>"search":"col1,col2"</i> ou NULL sem
+     * índice
+     * @throws DatabaseException
+     */
+    public static String[] getSearch(String table) throws DatabaseException {
+
+        if (table == null || table.isEmpty() || !ORM.exists()) {
+            return null;
+        }
+
+        JSONObject orm = ORM.get().getJSONObjectValue(table.toLowerCase().trim());
+        String search = orm == null ? null : orm.getStringValue("search");
+
+        if (search == null || search.trim().isEmpty()) {
+            return null;
+        }
+
+        return Arrays.stream(search.split(",")).map(String::trim).map(String::toLowerCase).filter(s -> !s.isEmpty()).toArray(String[]::new);
+    }
+
+    /**
+     * Coluna de versão da tabela para a alteração parcial com controle de
+     * concorrência (Update.createPartialUpdateSQL)
+     *
+     * @param table
+     * @return String Coluna de <i>"version":"versao"</i> ou NULL
+     * @throws DatabaseException
+     */
+    public static String getVersion(String table) throws DatabaseException {
+
+        if (table == null || table.isEmpty() || !ORM.exists()) {
+            return null;
+        }
+
+        JSONObject orm = ORM.get().getJSONObjectValue(table.toLowerCase().trim());
+        String version = orm == null ? null : orm.getStringValue("version");
+
+        return version == null || version.trim().isEmpty() ? null : version.toLowerCase().trim();
+    }
 }
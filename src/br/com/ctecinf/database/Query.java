@@ -24,7 +24,6 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  *
@@ -39,11 +38,21 @@ public class Query implements AutoCloseable {
     private static final String LIMIT_FIREBIRD = "FIRST {maxResults} SKIP {offSet} ";
     private static final String LIMIT_DERBY = " OFFSET {offSet} FETCH NEXT {maxResults} ROWS ONLY";
 
+    private static final int BATCH_SIZE = 500;
+
     private String table;
     private java.sql.Connection connection;
+    private java.sql.Connection lookupConnection;
     private Statement st;
 
     private boolean isFirebird;
+    private boolean forwardOnly;
+    private int fetchSize;
+
+    private QueryTemplate template;
+    private boolean batchLookup;
+    private List<String> projection;
+    private RowMapper mapper;
 
     private String fullQuery;
     private String query;
@@ -75,13 +84,8 @@ public class Query implements AutoCloseable {
         this.isFirebird = Connection.getURL().toLowerCase().contains("firebird");
         this.orderBy = new ArrayList();
 
-        try {
-            this.connection = Connection.open();
-            this.st = this.connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            this.createQuery(table);
-        } catch (SQLException ex) {
-            throw new DatabaseException(ex);
-        }
+        this.connection = Connection.openRead();
+        this.createQuery(table);
     }
 
     /**
@@ -111,36 +115,53 @@ public class Query implements AutoCloseable {
      * @throws DatabaseException
      */
     protected final void createQuery(String table) throws DatabaseException {
+        this.template = QueryTemplate.get(table);
+        this.query = this.template.getQuery();
+    }
 
-        List<String> columns = new ArrayList();
-
-        String join = "";
-
-        Metadata.getColumnsName(table).stream().forEach((column) -> {
-            columns.add(table + "." + column + " AS \"" + table + "_" + column + "\"");
-        });
-
-        if (Metadata.getReferencedTables(table) != null) {
-
-            for (String column : Metadata.getReferencedTables(table).keySet()) {
-
-                String referencedTable = Metadata.getReferencedTables(table).getStringValue(column);
+    /**
+     * Carrega as tabelas referenciadas depois da consulta principal, com uma
+     * consulta <i>WHERE pk IN (...)</i> por tabela referenciada, no lugar dos
+     * <i>JOIN</i>.<br>
+     * As claúsulas não podem usar colunas das tabelas referenciadas
+     * diretamente; <i>Clause.like</i> já filtra por sub-consulta.
+     *
+     * @param batchLookup
+     * @return Query
+     * @throws DatabaseException
+     */
+    public Query setBatchLookup(boolean batchLookup) throws DatabaseException {
 
-                if (referencedTable != null && !referencedTable.isEmpty()) {
+        this.batchLookup = batchLookup;
+        this.template = QueryTemplate.get(this.table, this.batchLookup, this.projection);
+        this.query = this.template.getQuery();
+        this.mapper = null;
+        this.fullQuery = null;
 
-                    String referencedColumn = Metadata.getPrimaryKeyName(referencedTable);
+        return this;
+    }
 
-                    Metadata.getColumnsName(referencedTable).stream().forEach((col) -> {
-                        columns.add(referencedTable + "." + col + " AS \"" + referencedTable + "_" + col + "\"");
-                    });
+    /**
+     * Consulta somente as colunas informadas, além da chave primária e dos
+     * campos do <i>to_string</i>. Colunas das tabelas referenciadas como
+     * 'tabela.coluna'; sem elas, a tabela referenciada vem com todas as
+     * colunas. Chaves estrangeiras fora da lista ficam sem <i>LEFT JOIN</i>
+     * (as claúsulas não podem usar essas tabelas); <i>JOIN</i> interno e
+     * 'case' continuam, pois filtram os registros.
+     *
+     * @param columns Colunas ou nenhuma para todas
+     * @return Query
+     * @throws DatabaseException
+     */
+    public Query select(String... columns) throws DatabaseException {
 
-                    join += " JOIN " + referencedTable + " ON CASE WHEN " + table + "." + column + " IS NULL THEN (SELECT MIN(" + referencedTable + "." + referencedColumn + ") FROM " + referencedTable + ") ELSE " + table + "." + column + " END = " + referencedTable + "." + referencedColumn;
-                    //join += " JOIN " + referenceTable + " ON " + referenceTable + "." + referenceColumn + " = " + table + "." + column;
-                }
-            }
-        }
+        this.projection = columns == null || columns.length == 0 ? null : Arrays.asList(columns);
+        this.template = QueryTemplate.get(this.table, this.batchLookup, this.projection);
+        this.query = this.template.getQuery();
+        this.mapper = null;
+        this.fullQuery = null;
 
-        this.query = "SELECT " + Arrays.stream(columns.toArray()).map(String::valueOf).collect(Collectors.joining(", ")) + " FROM " + table + join;
+        return this;
     }
 
     /**
@@ -199,6 +220,72 @@ public class Query implements AutoCloseable {
         return this;
     }
 
+    /**
+     * Percorre o resultado somente para frente, sem carregar todos os
+     * registros na memória do cliente
+     *
+     * @param forwardOnly
+     * @return Query
+     */
+    public Query setForwardOnly(boolean forwardOnly) {
+        this.forwardOnly = forwardOnly;
+        return this;
+    }
+
+    /**
+     * Número de registros buscados no banco de dados a cada ida ao servidor
+     *
+     * @param fetchSize
+     * @return Query
+     */
+    public Query setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Cria o <i>Statement</i> conforme o modo de leitura da consulta
+     *
+     * @return Statement
+     * @throws SQLException
+     * @throws DatabaseException
+     */
+    private Statement getStatement() throws SQLException, DatabaseException {
+
+        if (this.st == null) {
+
+            if (this.forwardOnly) {
+
+                String url = Connection.getURL().toLowerCase();
+
+                // Postgres só usa cursor no servidor fora do modo auto-commit
+                if (url.contains("postgres")) {
+                    this.connection.setAutoCommit(false);
+                }
+
+                this.st = this.connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+                if (url.contains("mysql")) {
+                    this.st.setFetchSize(Integer.MIN_VALUE);
+                } else if (this.fetchSize > 0) {
+                    this.st.setFetchSize(this.fetchSize);
+                }
+
+            } else {
+
+                this.st = this.connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+
+                if (this.fetchSize > 0) {
+                    this.st.setFetchSize(this.fetchSize);
+                }
+            }
+
+            Async.prepare(this.st);
+        }
+
+        return this.st;
+    }
+
     /**
      * <i>ResultSet</i> da consulta
      *
@@ -207,10 +294,74 @@ public class Query implements AutoCloseable {
      */
     public ResultSet getResultSet() throws DatabaseException {
         try {
-            return this.st.executeQuery(this.toString());
+
+            String sql = this.toString();
+            long start = System.nanoTime();
+
+            ResultSet rs = this.getStatement().executeQuery(sql);
+
+            QueryStats.executed(sql, System.nanoTime() - start, -1);
+
+            return rs;
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
+
+    /**
+     * Percorre o resultado da consulta registro a registro, fechando o cursor
+     * ao final.<br>
+     * Usar com <i>setForwardOnly(true)</i> e <i>setFetchSize(n)</i> para
+     * exportações e relatórios de tabelas grandes.
+     *
+     * @param handler Recebe cada registro no mesmo formato de
+     * <i>getJSONData()</i>
+     * @return int Total de registros percorridos
+     * @throws DatabaseException
+     */
+    public int forEach(RowHandler handler) throws DatabaseException {
+
+        int count = 0;
+        int batchSize = this.fetchSize > 0 ? this.fetchSize : BATCH_SIZE;
+
+        List<Object[]> batch = new ArrayList();
+
+        // Tempo da leitura do cursor, sem as referências e o handler
+        long elapsed;
+        long paused = 0;
+
+        try (ResultSet rs = this.getResultSet()) {
+
+            long start = System.nanoTime();
+
+            while (rs.next()) {
+
+                if (this.mapper == null) {
+                    this.mapper = this.template.getMapper(rs);
+                }
+
+                batch.add(this.mapper.read(rs));
+                count++;
+
+                if (batch.size() >= batchSize) {
+                    long pause = System.nanoTime();
+                    this.flush(batch, handler);
+                    paused += System.nanoTime() - pause;
+                }
+            }
+
+            elapsed = System.nanoTime() - start - paused;
+
         } catch (SQLException ex) {
             throw new DatabaseException(ex);
         }
+
+        this.flush(batch, handler);
+
+        QueryStats.mapped(this.toString(), elapsed, count);
+
+        return count;
     }
 
     /**
@@ -226,67 +377,120 @@ public class Query implements AutoCloseable {
      */
     public JSONArray getJSONData() throws DatabaseException {
 
-        try (ResultSet rs = this.getResultSet()) {
+        JSONArray array = new JSONArray();
 
-            JSONArray array = new JSONArray();
-
-            while (rs.next()) {
+        this.forEach(array::add);
 
-                JSONObject data = this.getRowData(this.table, rs);
+        return array;
+    }
 
-                String label = ORM.toString(this.table);
-                String value = data.getStringValue(Metadata.getPrimaryKeyName(this.table));
+    /**
+     * Retorna o resultado da consulta em colunas de tipos primitivos, para
+     * somas e agrupamentos de relatórios
+     *
+     * @return ColumnarResult
+     * @throws DatabaseException
+     */
+    public ColumnarResult getColumnarData() throws DatabaseException {
+        return this.getColumnarData(false);
+    }
 
-                for (String key : data.keySet()) {
-                    label = label.replace("{" + key + "}", data.getStringValue(key) == null ? "" : data.getStringValue(key));
-                }
+    /**
+     * Retorna o resultado da consulta em colunas de tipos primitivos, para
+     * somas e agrupamentos de relatórios. Com <i>setBatchLookup(true)</i> as
+     * colunas das tabelas referenciadas não entram no resultado.
+     *
+     * @param offHeap TRUE: valores fora do <i>heap</i> (resultados grandes)
+     * @return ColumnarResult
+     * @throws DatabaseException
+     */
+    public ColumnarResult getColumnarData(boolean offHeap) throws DatabaseException {
+        try (ResultSet rs = this.getResultSet()) {
+            return ColumnarResult.read(rs, this.table, offHeap);
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
 
-                data.put("value", value);
-                data.put("label", label);
+    /**
+     * Completa as referências <i>lookup</i> do lote e entrega os registros
+     *
+     * @param batch Valores lidos pelo <i>RowMapper</i>
+     * @param handler
+     * @throws DatabaseException
+     */
+    private void flush(List<Object[]> batch, RowHandler handler) throws DatabaseException {
 
-                array.add(data);
-            }
+        if (batch.isEmpty()) {
+            return;
+        }
 
-            return array;
+        if (!this.template.getLookups().isEmpty()) {
+            ReferenceLoader.resolve(this.getLookupConnection(), this.template, this.mapper, batch);
+        }
 
-        } catch (SQLException ex) {
-            throw new DatabaseException(ex);
+        for (Object[] values : batch) {
+            handler.handle(this.toJSON(values));
         }
+
+        batch.clear();
     }
 
     /**
-     * Extraí dados da linha do ResultSet
+     * Conexão para buscar as referências. No modo somente para frente usa
+     * uma segunda conexão, pois o cursor principal ainda está aberto.
      *
-     * @param table
-     * @param rs
-     * @return JSONObject
+     * @return java.sql.Connection
      * @throws DatabaseException
      */
-    private JSONObject getRowData(String table, ResultSet rs) throws DatabaseException {
+    private java.sql.Connection getLookupConnection() throws DatabaseException {
+
+        if (!this.forwardOnly) {
+            return this.connection;
+        }
+
+        if (this.lookupConnection == null) {
+            this.lookupConnection = Connection.openRead();
+        }
+
+        return this.lookupConnection;
+    }
 
-        List<String> columns = Metadata.getColumnsName(table);
-        JSONObject reference = Metadata.getReferencedTables(table);
+    /**
+     * Registro com <i>label</i> e <i>value</i>
+     *
+     * @param values Valores lidos pelo <i>RowMapper</i>
+     * @return JSONObject
+     */
+    private JSONObject toJSON(Object[] values) {
 
-        JSONObject data = new JSONObject();
+        JSONObject data = this.mapper.toJSON(values);
 
-        for (String column : columns) {
+        int pk = this.template.getPrimaryKeyIndex();
+        LabelTemplate label = this.template.getLabel();
 
-            data.put(column, DataType.getValue(rs, table + "_" + column));
+        String value = pk < 0 || values[pk] == null ? null : values[pk].toString();
 
-            if (reference.containsKey(column)) {
-                try {
-                    int index = rs.findColumn(table + "_" + column);
-                    if (index > -1) {
-                        data.put(reference.getStringValue(column), getRowData(reference.getStringValue(column), rs));
-                    }
-                } catch (SQLException ex) {
-                }
-            }
-        }
+        data.put("value", value);
+        data.put("label", label == null ? null : label.render(values));
 
         return data;
     }
 
+    /**
+     * Recebe os registros da consulta em <i>forEach</i>
+     */
+    @FunctionalInterface
+    public interface RowHandler {
+
+        /**
+         *
+         * @param row Registro
+         * @throws DatabaseException
+         */
+        void handle(JSONObject row) throws DatabaseException;
+    }
+
     @Override
     public void close() throws DatabaseException {
 
@@ -298,6 +502,14 @@ public class Query implements AutoCloseable {
             }
         }
 
+        if (this.lookupConnection != null) {
+            try {
+                this.lookupConnection.close();
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+
         if (this.connection != null) {
             try {
                 this.connection.close();
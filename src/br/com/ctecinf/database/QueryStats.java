@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Tempos das instruções SQL de <i>Query</i>, <i>Count</i> e <i>Update</i>,
+ * agrupados pelo formato do SQL (valores trocados por '?'): execuções, tempo
+ * total, maior tempo, percentil 99 e registros.<br>
+ * Instruções mais lentas que 'slow_query' ('connection.properties',
+ * milissegundos, padrão 1000, 0 desativa) vão para o log (System.err) e para
+ * a lista <i>getSlowQueries</i>.
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class QueryStats {
+
+    /**
+     * Formatos guardados; os demais são somados em um único formato
+     */
+    private static final int MAX_SHAPES = 1000;
+    private static final int MAX_SLOW = 100;
+    private static final int MAX_SQL = 2000;
+    private static final String OTHERS = "(outras)";
+
+    private static final Pattern LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+
+    private static final Map<String, Shape> SHAPES = new ConcurrentHashMap();
+    private static final ArrayDeque<SlowQuery> SLOW = new ArrayDeque();
+
+    private static volatile long threshold = -1;
+
+    private QueryStats() {
+    }
+
+    /**
+     * Registra a execução de uma instrução
+     *
+     * @param sql SQL executado
+     * @param nanos Tempo em nanossegundos
+     * @param rows Registros afetados ou -1 se desconhecido
+     */
+    static void executed(String sql, long nanos, long rows) {
+
+        Shape shape = QueryStats.shape(sql);
+
+        shape.count.increment();
+        shape.total.add(nanos);
+        shape.max.accumulateAndGet(nanos, Math::max);
+        shape.histogram.incrementAndGet(Shape.bucket(nanos));
+
+        if (rows > 0) {
+            shape.rows.add(rows);
+        }
+
+        QueryStats.slow(sql, nanos, "execução");
+    }
+
+    /**
+     * Registra a leitura e montagem dos registros de uma consulta
+     *
+     * @param sql SQL executado
+     * @param nanos Tempo em nanossegundos
+     * @param rows Registros lidos
+     */
+    static void mapped(String sql, long nanos, long rows) {
+
+        Shape shape = QueryStats.shape(sql);
+
+        shape.mapping.add(nanos);
+        shape.rows.add(rows);
+
+        QueryStats.slow(sql, nanos, "leitura de " + rows + " registros");
+    }
+
+    /**
+     * Formatos com maior tempo total
+     *
+     * @param limit
+     * @return List
+     */
+    public static List<Shape> top(int limit) {
+
+        List<Shape> list = new ArrayList(SHAPES.values());
+
+        list.sort((a, b) -> Long.compare(b.total.sum() + b.mapping.sum(), a.total.sum() + a.mapping.sum()));
+
+        return list.subList(0, Math.min(limit, list.size()));
+    }
+
+    /**
+     * Últimas instruções lentas (a mais recente primeiro)
+     *
+     * @return List
+     */
+    public static List<SlowQuery> getSlowQueries() {
+
+        List<SlowQuery> list = new ArrayList();
+
+        synchronized (SLOW) {
+            SLOW.descendingIterator().forEachRemaining(list::add);
+        }
+
+        return list;
+    }
+
+    /**
+     * Altera o limite da instrução lenta
+     *
+     * @param millis Milissegundos (0 desativa)
+     */
+    public static void setThreshold(long millis) {
+        threshold = millis;
+    }
+
+    /**
+     * Descarta os tempos registrados
+     */
+    public static void clear() {
+
+        SHAPES.clear();
+
+        synchronized (SLOW) {
+            SLOW.clear();
+        }
+    }
+
+    /**
+     * Formato do SQL: textos e números trocados por '?', listas de '?' por um
+     * único '?' e espaços repetidos por um espaço
+     *
+     * @param sql
+     * @return String
+     */
+    public static String fingerprint(String sql) {
+
+        StringBuilder sb = new StringBuilder(sql.length());
+
+        int i = 0;
+        int length = sql.length();
+
+        while (i < length) {
+
+            char c = sql.charAt(i);
+
+            if (c == '\'') {
+
+                // Texto, com '' dentro
+                i++;
+
+                while (i < length) {
+                    if (sql.charAt(i) == '\'' && (i + 1 >= length || sql.charAt(i + 1) != '\'')) {
+                        break;
+                    }
+                    i += sql.charAt(i) == '\'' ? 2 : 1;
+                }
+
+                sb.append('?');
+                i++;
+
+            } else if (c == '"') {
+
+                // Nome entre aspas: mantém
+                int end = sql.indexOf('"', i + 1);
+                end = end < 0 ? length : end + 1;
+                sb.append(sql, i, end);
+                i = end;
+
+            } else if (Character.isDigit(c) && (sb.length() == 0 || !Character.isLetterOrDigit(sb.charAt(sb.length() - 1)) && sb.charAt(sb.length() - 1) != '_' && sb.charAt(sb.length() - 1) != '$')) {
+
+                while (i < length && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+
+                sb.append('?');
+
+            } else if (Character.isWhitespace(c)) {
+
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+                    sb.append(' ');
+                }
+
+                i++;
+
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+
+        return LIST.matcher(sb.toString().trim()).replaceAll("?");
+    }
+
+    private static Shape shape(String sql) {
+
+        String key = QueryStats.fingerprint(sql);
+        Shape shape = SHAPES.get(key);
+
+        if (shape == null) {
+            key = SHAPES.size() >= MAX_SHAPES ? OTHERS : key;
+            shape = SHAPES.computeIfAbsent(key, Shape::new);
+        }
+
+        return shape;
+    }
+
+    private static void slow(String sql, long nanos, String phase) {
+
+        long limit = QueryStats.getThreshold();
+
+        if (limit <= 0 || nanos < limit * 1000000) {
+            return;
+        }
+
+        SlowQuery query = new SlowQuery(sql.length() > MAX_SQL ? sql.substring(0, MAX_SQL) + "..." : sql, phase, nanos);
+
+        synchronized (SLOW) {
+
+            SLOW.addLast(query);
+
+            if (SLOW.size() > MAX_SLOW) {
+                SLOW.removeFirst();
+            }
+        }
+
+        System.err.println("Consulta lenta (" + query.getElapsed() + " ms, " + phase + "): " + query.getSql());
+    }
+
+    private static long getThreshold() {
+
+        if (threshold < 0) {
+            try {
+                threshold = Long.parseLong(Connection.getProperties().getProperty("slow_query", "1000").trim());
+            } catch (DatabaseException | NumberFormatException ex) {
+                threshold = 1000;
+            }
+        }
+
+        return threshold;
+    }
+
+    /**
+     * Tempos de um formato de SQL
+     */
+    public static final class Shape {
+
+        /**
+         * Histograma em microssegundos: 4 faixas para cada potência de 2
+         */
+        private static final int SUB_BUCKETS = 4;
+
+        private final String sql;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAdder mapping = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(64 * SUB_BUCKETS);
+
+        private Shape(String sql) {
+            this.sql = sql;
+        }
+
+        private static int bucket(long nanos) {
+
+            long micros = nanos / 1000;
+
+            if (micros < SUB_BUCKETS) {
+                return (int) Math.max(0, micros);
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >> (exponent - 2)) & (SUB_BUCKETS - 1);
+
+            return exponent * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Maior valor da faixa, em microssegundos
+         */
+        private static long upper(int bucket) {
+
+            if (bucket < SUB_BUCKETS) {
+                return bucket + 1;
+            }
+
+            int exponent = bucket / SUB_BUCKETS;
+            int sub = bucket % SUB_BUCKETS;
+
+            return (long) (SUB_BUCKETS + sub + 1) << (exponent - 2);
+        }
+
+        /**
+         * Formato do SQL
+         *
+         * @return String
+         */
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * Total de execuções
+         *
+         * @return long
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Tempo total de execução em milissegundos
+         *
+         * @return double
+         */
+        public double getTotalTime() {
+            return total.sum() / 1e6;
+        }
+
+        /**
+         * Tempo médio de execução em milissegundos
+         *
+         * @return double
+         */
+        public double getAverageTime() {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum() / 1e6 / n;
+        }
+
+        /**
+         * Maior tempo de execução em milissegundos
+         *
+         * @return double
+         */
+        public double getMaxTime() {
+            return max.get() / 1e6;
+        }
+
+        /**
+         * Tempo de execução de 99% das execuções em milissegundos (aproximado,
+         * até 25% acima)
+         *
+         * @return double
+         */
+        public double getP99Time() {
+
+            long n = 0;
+
+            for (int i = 0; i < histogram.length(); i++) {
+                n += histogram.get(i);
+            }
+
+            long target = (long) Math.ceil(n * 0.99);
+            long sum = 0;
+
+            for (int i = 0; i < histogram.length() && n > 0; i++) {
+
+                sum += histogram.get(i);
+
+                if (sum >= target) {
+                    return Math.min(Shape.upper(i) / 1e3, this.getMaxTime());
+                }
+            }
+
+            return 0;
+        }
+
+        /**
+         * Tempo total de leitura e montagem dos registros em milissegundos
+         *
+         * @return double
+         */
+        public double getMappingTime() {
+            return mapping.sum() / 1e6;
+        }
+
+        /**
+         * Total de registros lidos ou afetados
+         *
+         * @return long
+         */
+        public long getRows() {
+            return rows.sum();
+        }
+    }
+
+    /**
+     * Instrução lenta
+     */
+    public static final class SlowQuery {
+
+        private final long time;
+        private final String sql;
+        private final String phase;
+        private final long nanos;
+
+        private SlowQuery(String sql, String phase, long nanos) {
+            this.time = System.currentTimeMillis();
+            this.sql = sql;
+            this.phase = phase;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Horário em milissegundos
+         *
+         * @return long
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * SQL executado
+         *
+         * @return String
+         */
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * Etapa lenta: execução ou leitura dos registros
+         *
+         * @return String
+         */
+        public String getPhase() {
+            return phase;
+        }
+
+        /**
+         * Tempo em milissegundos
+         *
+         * @return long
+         */
+        public long getElapsed() {
+            return nanos / 1000000;
+        }
+    }
+}
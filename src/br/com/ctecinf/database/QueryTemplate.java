@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <i>SELECT</i> base de uma tabela, gerado uma única vez a partir dos
+ * metadados e reaproveitado por todas as consultas da tabela
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+final class QueryTemplate {
+
+    private static final int MAX_TEMPLATES = 512;
+
+    private static final Map<String, QueryTemplate> CACHE = new ConcurrentHashMap();
+
+    private final String table;
+    private final String columns;
+    private final String join;
+    private final String query;
+    private final String flatQuery;
+    private final List<ForeignKeyMeta> lookups;
+    private volatile RowMapper mapper;
+    private volatile RowMapper flatMapper;
+    private volatile LabelTemplate label;
+    private volatile int primaryKey;
+
+    /**
+     * Construtor
+     *
+     * @param table Nome da tabela
+     * @param lookup TRUE: todas as referências sem <i>JOIN</i>
+     * @param projection Colunas pedidas ('coluna' ou
+     * 'tabela_referenciada.coluna') ou NULL para todas
+     * @throws DatabaseException
+     */
+    private QueryTemplate(String table, boolean lookup, Set<String> projection) throws DatabaseException {
+
+        TableMeta meta = Metadata.requireTable(table);
+
+        List<String> list = new ArrayList();
+        List<String> flatList = new ArrayList();
+        List<ForeignKeyMeta> lookupList = new ArrayList();
+        Set<String> selected = new HashSet();
+        StringBuilder sb = new StringBuilder();
+
+        if (projection != null) {
+
+            // Chave primária e campos do to_string sempre vão na consulta
+            Set<String> fields = LabelTemplate.fields(ORM.toString(table));
+
+            for (String column : meta.getColumnNames()) {
+
+                String referencedTable = meta.getReferencedTable(column);
+
+                if (column.equals(meta.getPrimaryKey()) || projection.contains(column) || fields.contains(column)) {
+                    selected.add(column);
+                } else if (referencedTable != null && (fields.contains(referencedTable) || projection.stream().anyMatch(c -> c.startsWith(referencedTable + ".")))) {
+                    // Referência usada no to_string ou com colunas pedidas
+                    selected.add(column);
+                }
+            }
+        }
+
+        for (String column : meta.getColumnNames()) {
+
+            flatList.add(table + "." + column + " AS \"" + table + "_" + column + "\"");
+
+            if (projection == null || selected.contains(column)) {
+                list.add(table + "." + column + " AS \"" + table + "_" + column + "\"");
+            }
+        }
+
+        String flat = "SELECT " + String.join(", ", flatList) + " FROM " + table;
+
+        for (ForeignKeyMeta foreignKey : meta.getForeignKeys()) {
+
+            String column = foreignKey.getColumn();
+            String join = lookup ? ORM.JOIN_LOOKUP : ORM.getJoin(table, column);
+            boolean unselected = projection != null && !selected.contains(column);
+
+            // JOIN interno e CASE filtram os registros: ficam mesmo fora da
+            // projeção, só sem as colunas
+            if (unselected && !join.equals(ORM.JOIN_INNER) && !join.equals(ORM.JOIN_CASE)) {
+                continue;
+            }
+
+            TableMeta referenced = Metadata.requireTable(foreignKey.getReferencedTable());
+            String referencedTable = referenced.getName();
+            String referencedColumn = referenced.getPrimaryKey();
+
+            if (join.equals(ORM.JOIN_LOOKUP)) {
+                lookupList.add(foreignKey);
+                continue;
+            }
+
+            Set<String> referencedColumns = QueryTemplate.getReferencedProjection(referenced, projection);
+
+            for (String col : referenced.getColumnNames()) {
+                if (!unselected && (referencedColumns == null || referencedColumns.contains(col))) {
+                    list.add(referencedTable + "." + col + " AS \"" + referencedTable + "_" + col + "\"");
+                }
+            }
+
+            switch (join) {
+                case ORM.JOIN_CASE:
+                    sb.append(" JOIN ").append(referencedTable).append(" ON CASE WHEN ").append(table).append(".").append(column).append(" IS NULL THEN (SELECT MIN(").append(referencedTable).append(".").append(referencedColumn).append(") FROM ").append(referencedTable).append(") ELSE ").append(table).append(".").append(column).append(" END = ").append(referencedTable).append(".").append(referencedColumn);
+                    break;
+                case ORM.JOIN_INNER:
+                    sb.append(" JOIN ").append(referencedTable).append(" ON ").append(referencedTable).append(".").append(referencedColumn).append(" = ").append(table).append(".").append(column);
+                    break;
+                default:
+                    sb.append(" LEFT JOIN ").append(referencedTable).append(" ON ").append(referencedTable).append(".").append(referencedColumn).append(" = ").append(table).append(".").append(column);
+                    break;
+            }
+        }
+
+        this.table = table;
+        this.columns = String.join(", ", list);
+        this.join = sb.toString();
+        this.query = "SELECT " + this.columns + " FROM " + table + this.join;
+        this.flatQuery = flat;
+        this.lookups = Collections.unmodifiableList(lookupList);
+    }
+
+    /**
+     * Template da tabela, gerado na primeira chamada
+     *
+     * @param table Nome da tabela
+     * @return QueryTemplate
+     * @throws DatabaseException
+     */
+    static QueryTemplate get(String table) throws DatabaseException {
+        return QueryTemplate.get(table, false);
+    }
+
+    /**
+     * Template da tabela, gerado na primeira chamada
+     *
+     * @param table Nome da tabela
+     * @param lookup TRUE: todas as referências carregadas em lote, sem
+     * <i>JOIN</i>
+     * @return QueryTemplate
+     * @throws DatabaseException
+     */
+    static QueryTemplate get(String table, boolean lookup) throws DatabaseException {
+        return QueryTemplate.get(table, lookup, null);
+    }
+
+    /**
+     * Template da tabela só com as colunas pedidas, a chave primária e os
+     * campos do <i>to_string</i>. Colunas que não existem são ignoradas.
+     *
+     * @param table Nome da tabela
+     * @param lookup TRUE: todas as referências carregadas em lote, sem
+     * <i>JOIN</i>
+     * @param columns Colunas ('coluna' ou 'tabela_referenciada.coluna') ou
+     * NULL para todas
+     * @return QueryTemplate
+     * @throws DatabaseException
+     */
+    static QueryTemplate get(String table, boolean lookup, Collection<String> columns) throws DatabaseException {
+
+        table = table.toLowerCase().trim();
+
+        Set<String> projection = QueryTemplate.normalize(table, columns);
+
+        String key = (lookup ? table + "#lookup" : table) + (projection == null ? "" : "#" + String.join(",", projection));
+
+        QueryTemplate template = CACHE.get(key);
+
+        if (template == null) {
+
+            template = new QueryTemplate(table, lookup, projection);
+
+            // Projeções vêm de parâmetros da requisição: limita o cache
+            if (projection != null && CACHE.size() >= MAX_TEMPLATES) {
+                return template;
+            }
+
+            QueryTemplate previous = CACHE.putIfAbsent(key, template);
+
+            if (previous != null) {
+                template = previous;
+            }
+        }
+
+        return template;
+    }
+
+    /**
+     * Colunas pedidas que existem, em ordem, para a chave do cache
+     */
+    private static Set<String> normalize(String table, Collection<String> columns) throws DatabaseException {
+
+        if (columns == null || columns.isEmpty()) {
+            return null;
+        }
+
+        TableMeta meta = Metadata.requireTable(table);
+        Set<String> projection = new TreeSet();
+
+        for (String column : columns) {
+
+            String name = column.toLowerCase().trim();
+            int dot = name.indexOf('.');
+
+            if (dot < 0 ? meta.getColumn(name) != null : QueryTemplate.isReferencedColumn(meta, name.substring(0, dot), name.substring(dot + 1))) {
+                projection.add(name);
+            }
+        }
+
+        return projection;
+    }
+
+    private static boolean isReferencedColumn(TableMeta meta, String referencedTable, String column) throws DatabaseException {
+
+        for (ForeignKeyMeta foreignKey : meta.getForeignKeys()) {
+            if (foreignKey.getReferencedTable().equals(referencedTable)) {
+                return Metadata.requireTable(referencedTable).getColumn(column) != null;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Colunas da tabela referenciada: as pedidas como
+     * 'tabela_referenciada.coluna' mais a chave primária e os campos do
+     * <i>to_string</i>, ou NULL para todas
+     */
+    private static Set<String> getReferencedProjection(TableMeta referenced, Set<String> projection) throws DatabaseException {
+
+        if (projection == null) {
+            return null;
+        }
+
+        String prefix = referenced.getName() + ".";
+        Set<String> columns = new HashSet();
+
+        for (String column : projection) {
+            if (column.startsWith(prefix)) {
+                columns.add(column.substring(prefix.length()));
+            }
+        }
+
+        if (columns.isEmpty()) {
+            return null;
+        }
+
+        columns.add(referenced.getPrimaryKey());
+        columns.addAll(LabelTemplate.fields(ORM.toString(referenced.getName())));
+
+        return columns;
+    }
+
+    /**
+     * Descarta os templates gerados. Chamar quando os metadados mudarem.
+     */
+    static void clear() {
+        CACHE.clear();
+    }
+
+    /**
+     * Descarta os templates das tabelas informadas
+     *
+     * @param tables Nome das tabelas
+     */
+    static void invalidate(Collection<String> tables) {
+        CACHE.values().removeIf((template) -> tables.contains(template.getTable()));
+    }
+
+    /**
+     * Tabela alvo
+     *
+     * @return String
+     */
+    String getTable() {
+        return this.table;
+    }
+
+    /**
+     * Lista de colunas com os <i>alias</i> "tabela_coluna"
+     *
+     * @return String
+     */
+    String getColumns() {
+        return this.columns;
+    }
+
+    /**
+     * <i>JOIN</i> das tabelas referenciadas
+     *
+     * @return String
+     */
+    String getJoin() {
+        return this.join;
+    }
+
+    /**
+     * Mapeamento das linhas, compilado no primeiro resultado da consulta
+     *
+     * @param rs
+     * @return RowMapper
+     * @throws DatabaseException
+     */
+    RowMapper getMapper(ResultSet rs) throws DatabaseException {
+
+        if (this.mapper == null) {
+            try {
+                Set<String> columns = new HashSet();
+
+                for (ForeignKeyMeta foreignKey : this.lookups) {
+                    columns.add(foreignKey.getColumn());
+                }
+
+                RowMapper m = RowMapper.compile(this.table, rs.getMetaData(), columns);
+                this.label = LabelTemplate.compile(ORM.toString(this.table), m);
+                this.primaryKey = m.indexOf(Metadata.requireTable(this.table).getPrimaryKey());
+                this.mapper = m;
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+
+        return this.mapper;
+    }
+
+    /**
+     * Mapeamento das linhas de <i>getFlatQuery()</i>
+     *
+     * @param rs
+     * @return RowMapper
+     * @throws DatabaseException
+     */
+    RowMapper getFlatMapper(ResultSet rs) throws DatabaseException {
+
+        if (this.flatMapper == null) {
+            try {
+                this.flatMapper = RowMapper.compile(this.table, rs.getMetaData(), Collections.<String>emptySet());
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+
+        return this.flatMapper;
+    }
+
+    /**
+     * <i>to_string</i> compilado. Disponível após <i>getMapper</i>.
+     *
+     * @return LabelTemplate ou NULL
+     */
+    LabelTemplate getLabel() {
+        return this.label;
+    }
+
+    /**
+     * Posição da chave primária nos valores do <i>RowMapper</i>. Disponível
+     * após <i>getMapper</i>.
+     *
+     * @return int
+     */
+    int getPrimaryKeyIndex() {
+        return this.primaryKey;
+    }
+
+    /**
+     * <i>SELECT</i> somente com as colunas da tabela, sem <i>JOIN</i>
+     *
+     * @return String
+     */
+    String getFlatQuery() {
+        return this.flatQuery;
+    }
+
+    /**
+     * Chaves estrangeiras com estratégia <i>lookup</i>, carregadas depois da
+     * consulta principal
+     *
+     * @return List imutável
+     */
+    List<ForeignKeyMeta> getLookups() {
+        return this.lookups;
+    }
+
+    /**
+     * <i>SELECT</i> completo sem claúsulas
+     *
+     * @return String
+     */
+    String getQuery() {
+        return this.query;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import br.com.ctecinf.json.JSONObject;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Carrega em lote os registros das tabelas referenciadas sem <i>JOIN</i>:
+ * uma consulta <i>WHERE pk IN (...)</i> por tabela referenciada para todas as
+ * linhas do lote
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+final class ReferenceLoader {
+
+    private ReferenceLoader() {
+    }
+
+    /**
+     * Preenche nas linhas a posição de cada referência <i>lookup</i> do
+     * template
+     *
+     * @param connection Conexão para as consultas
+     * @param template Template da consulta principal
+     * @param mapper Mapeamento da consulta principal
+     * @param rows Valores lidos pelo <i>mapper</i>
+     * @throws DatabaseException
+     */
+    static void resolve(java.sql.Connection connection, QueryTemplate template, RowMapper mapper, List<Object[]> rows) throws DatabaseException {
+
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        for (ForeignKeyMeta foreignKey : template.getLookups()) {
+
+            int from = mapper.indexOf(foreignKey.getColumn());
+            int to = mapper.indexOf(foreignKey.getReferencedTable());
+
+            if (from < 0 || to < 0) {
+                continue;
+            }
+
+            Set<Object> keys = new LinkedHashSet();
+
+            for (Object[] row : rows) {
+                if (row[from] != null) {
+                    keys.add(row[from]);
+                }
+            }
+
+            Map<String, JSONObject> found = ReferenceLoader.load(connection, foreignKey.getReferencedTable(), keys);
+
+            for (Object[] row : rows) {
+
+                JSONObject data = row[from] == null ? null : found.get(row[from].toString());
+
+                row[to] = data == null ? ReferenceLoader.empty(foreignKey.getReferencedTable()) : ReferenceLoader.copy(data);
+            }
+        }
+    }
+
+    /**
+     * Busca os registros da tabela pelas chaves primárias
+     *
+     * @param connection
+     * @param table Tabela referenciada
+     * @param keys Valores da chave primária
+     * @return Map [chave primária] : [registro]
+     * @throws DatabaseException
+     */
+    static Map<String, JSONObject> load(java.sql.Connection connection, String table, Collection<Object> keys) throws DatabaseException {
+
+        Map<String, JSONObject> found = new HashMap();
+
+        boolean cache = EntityCache.isEnabled(table);
+
+        // Réplica atrasada colocaria de volta no cache o registro já alterado
+        boolean store = cache && !Replicas.isReplica(connection);
+
+        // Gravação durante a leitura colocaria de volta o registro antigo
+        long generation = store ? EntityCache.generation(table) : -1;
+
+        List<Object> list = new ArrayList();
+
+        for (Object key : keys) {
+
+            JSONObject data = cache ? EntityCache.get(table, key) : null;
+
+            if (data == null) {
+                list.add(key);
+            } else {
+                found.put(key.toString(), data);
+            }
+        }
+
+        if (list.isEmpty()) {
+            return found;
+        }
+
+        QueryTemplate template = QueryTemplate.get(table);
+        String pk = Metadata.requireTable(table).getPrimaryKey();
+
+        int max = ReferenceLoader.getMaxParameters(connection);
+
+        for (int start = 0; start < list.size(); start += max) {
+
+            List<Object> chunk = list.subList(start, Math.min(start + max, list.size()));
+
+            StringBuilder sql = new StringBuilder(template.getFlatQuery());
+            sql.append(" WHERE ").append(table).append(".").append(pk).append(" IN (");
+
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+
+            sql.append(")");
+
+            try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+
+                Async.prepare(ps);
+
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setObject(i + 1, chunk.get(i));
+                }
+
+                try (ResultSet rs = ps.executeQuery()) {
+
+                    RowMapper mapper = null;
+
+                    while (rs.next()) {
+
+                        if (mapper == null) {
+                            mapper = template.getFlatMapper(rs);
+                        }
+
+                        JSONObject data = mapper.map(rs);
+                        found.put(String.valueOf(data.get(pk)), data);
+
+                        if (store) {
+                            EntityCache.put(table, data.get(pk), data, generation);
+                        }
+                    }
+                }
+
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Número máximo de valores em um <i>IN (...)</i> aceito pelo banco de
+     * dados
+     *
+     * @param connection
+     * @return int
+     * @throws DatabaseException
+     */
+    static int getMaxParameters(java.sql.Connection connection) throws DatabaseException {
+
+        String url;
+
+        try {
+            url = connection.getMetaData().getURL().toLowerCase();
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+
+        if (url.contains("firebird")) {
+            return 1500;
+        } else if (url.contains("postgres")) {
+            return 32767;
+        } else if (url.contains("mysql")) {
+            return 65535;
+        } else {
+            return 1000;
+        }
+    }
+
+    /**
+     * Registro com todas as colunas nulas, mesmo formato do <i>LEFT JOIN</i>
+     */
+    private static JSONObject empty(String table) throws DatabaseException {
+
+        JSONObject data = new JSONObject();
+
+        for (String column : Metadata.requireTable(table).getColumnNames()) {
+            data.put(column, null);
+        }
+
+        return data;
+    }
+
+    private static JSONObject copy(JSONObject data) {
+        JSONObject c = new JSONObject();
+        c.putAll(data);
+        return c;
+    }
+}
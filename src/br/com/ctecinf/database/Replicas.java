@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Réplicas somente leitura do banco de dados, configuradas no
+ * 'connection.properties':<br>
+ * <i>replicas</i>: URLs completas separadas por vírgula (mesmo usuário e
+ * senha)<br>
+ * <i>replica_policy</i>: 'round_robin' (padrão) ou 'least_outstanding'<br>
+ * <i>replica_eject</i>: segundos fora de uso depois de uma falha (padrão
+ * 30)<br>
+ * <i>replica_sticky</i>: segundos lendo do principal depois de uma gravação
+ * na mesma thread (padrão 0)
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+final class Replicas {
+
+    static final String ROUND_ROBIN = "round_robin";
+    static final String LEAST_OUTSTANDING = "least_outstanding";
+
+    private static final int VALID_TIMEOUT = 2;
+
+    private static final AtomicInteger NEXT = new AtomicInteger();
+    private static final ThreadLocal<Long> LAST_WRITE = new ThreadLocal();
+
+    private static volatile String config;
+    private static volatile List<Replica> replicas = Collections.emptyList();
+
+    private Replicas() {
+    }
+
+    /**
+     * Abre conexão com uma réplica disponível
+     *
+     * @return java.sql.Connection ou NULL se não houver réplica disponível ou
+     * se a thread gravou há pouco (ler do principal)
+     * @throws DatabaseException
+     */
+    static java.sql.Connection connect() throws DatabaseException {
+
+        Properties properties = Connection.getProperties();
+        List<Replica> list = Replicas.getReplicas(properties);
+
+        if (list.isEmpty() || Replicas.isSticky(properties)) {
+            return null;
+        }
+
+        long eject = Long.parseLong(properties.getProperty("replica_eject", "30").trim()) * 1000;
+        boolean least = LEAST_OUTSTANDING.equals(properties.getProperty("replica_policy", ROUND_ROBIN).trim());
+
+        for (Replica replica : Replicas.order(list, least)) {
+
+            long now = System.currentTimeMillis();
+
+            if (replica.ejected > now) {
+                continue;
+            }
+
+            try {
+
+                java.sql.Connection connection = DriverManager.getConnection(replica.url, properties.getProperty("username"), properties.getProperty("password"));
+
+                // Volta de uma falha: confere a réplica antes de usar
+                if (replica.ejected > 0 && !connection.isValid(VALID_TIMEOUT)) {
+                    connection.close();
+                    replica.ejected = now + eject;
+                    continue;
+                }
+
+                replica.ejected = 0;
+
+                return Replicas.track(replica, connection);
+
+            } catch (SQLException ex) {
+                replica.ejected = now + eject;
+                System.err.println("Réplica fora de uso: " + replica.url + " - " + ex.getMessage());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Marca gravação na thread atual (chamado pelo <i>Update</i>)
+     */
+    static void written() {
+        LAST_WRITE.set(System.currentTimeMillis());
+    }
+
+    private static boolean isSticky(Properties properties) {
+
+        Long last = LAST_WRITE.get();
+
+        if (last == null) {
+            return false;
+        }
+
+        long sticky = Long.parseLong(properties.getProperty("replica_sticky", "0").trim()) * 1000;
+
+        if (last + sticky < System.currentTimeMillis()) {
+            LAST_WRITE.remove();
+            return false;
+        }
+
+        return true;
+    }
+
+    private static List<Replica> getReplicas(Properties properties) {
+
+        String value = properties.getProperty("replicas", "").trim();
+
+        if (!value.equals(config)) {
+
+            synchronized (Replicas.class) {
+
+                if (!value.equals(config)) {
+
+                    List<Replica> list = new ArrayList();
+
+                    for (String url : value.split(",")) {
+                        if (!url.trim().isEmpty()) {
+                            list.add(new Replica(url.trim()));
+                        }
+                    }
+
+                    replicas = Collections.unmodifiableList(list);
+                    config = value;
+                }
+            }
+        }
+
+        return replicas;
+    }
+
+    /**
+     * Ordem de tentativa: a partir da próxima da fila ou da com menos
+     * conexões abertas
+     */
+    private static List<Replica> order(List<Replica> list, boolean least) {
+
+        List<Replica> ordered = new ArrayList(list.size());
+        int start = Math.floorMod(NEXT.getAndIncrement(), list.size());
+
+        for (int i = 0; i < list.size(); i++) {
+            ordered.add(list.get((start + i) % list.size()));
+        }
+
+        if (least) {
+            ordered.sort((a, b) -> Integer.compare(a.outstanding.get(), b.outstanding.get()));
+        }
+
+        return ordered;
+    }
+
+    /**
+     * Verifica se a conexão é de uma réplica (dados podem estar atrasados)
+     *
+     * @param connection
+     * @return boolean
+     */
+    static boolean isReplica(java.sql.Connection connection) {
+        return Proxy.isProxyClass(connection.getClass()) && Proxy.getInvocationHandler(connection) instanceof Tracker;
+    }
+
+    /**
+     * Conexão que desconta a réplica ao fechar
+     */
+    private static java.sql.Connection track(Replica replica, java.sql.Connection connection) {
+
+        replica.outstanding.incrementAndGet();
+
+        return (java.sql.Connection) Proxy.newProxyInstance(Replicas.class.getClassLoader(), new Class[]{java.sql.Connection.class}, new Tracker(replica, connection));
+    }
+
+    /**
+     * Repassa as chamadas para a conexão da réplica
+     */
+    private static final class Tracker implements InvocationHandler {
+
+        private final Replica replica;
+        private final java.sql.Connection connection;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Tracker(Replica replica, java.sql.Connection connection) {
+            this.replica = replica;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            if (method.getName().equals("close") && closed.compareAndSet(false, true)) {
+                replica.outstanding.decrementAndGet();
+            }
+
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * Réplica
+     */
+    private static final class Replica {
+
+        private final String url;
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private volatile long ejected;
+
+        private Replica(String url) {
+            this.url = url;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import br.com.ctecinf.json.JSONObject;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converte as linhas do <i>ResultSet</i> em <i>JSONObject</i> usando os
+ * índices e tipos das colunas resolvidos uma única vez por formato de
+ * resultado
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+final class RowMapper {
+
+    private final String table;
+    private final String[] keys;
+    private final int[] indexes;
+    private final int[] types;
+    private final RowMapper[] nested;
+
+    private RowMapper(String table, List<String> keys, List<Integer> indexes, List<Integer> types, List<RowMapper> nested) {
+
+        this.table = table;
+        this.keys = keys.toArray(new String[keys.size()]);
+        this.indexes = new int[keys.size()];
+        this.types = new int[keys.size()];
+        this.nested = nested.toArray(new RowMapper[nested.size()]);
+
+        for (int i = 0; i < this.keys.length; i++) {
+            this.indexes[i] = indexes.get(i);
+            this.types[i] = types.get(i);
+        }
+    }
+
+    /**
+     * Compila o mapeamento da tabela para o formato do resultado
+     *
+     * @param table Nome da tabela
+     * @param md Metadados do <i>ResultSet</i>
+     * @param lookups Chaves estrangeiras da tabela carregadas depois da
+     * consulta. Recebem uma posição vazia logo após a coluna.
+     * @return RowMapper
+     * @throws DatabaseException
+     */
+    static RowMapper compile(String table, ResultSetMetaData md, Set<String> lookups) throws DatabaseException {
+
+        Map<String, Integer> labels = new HashMap();
+        Map<String, Integer> types = new HashMap();
+
+        try {
+            for (int i = 1; i <= md.getColumnCount(); i++) {
+                String label = md.getColumnLabel(i).toLowerCase().trim();
+                if (!labels.containsKey(label)) {
+                    labels.put(label, i);
+                    types.put(label, md.getColumnType(i));
+                }
+            }
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+
+        Set<String> path = new HashSet();
+
+        return RowMapper.compile(table.toLowerCase().trim(), labels, types, path, lookups);
+    }
+
+    private static RowMapper compile(String table, Map<String, Integer> labels, Map<String, Integer> types, Set<String> path, Set<String> lookups) throws DatabaseException {
+
+        path.add(table);
+
+        List<String> keys = new ArrayList();
+        List<Integer> indexes = new ArrayList();
+        List<Integer> columnTypes = new ArrayList();
+        List<RowMapper> nested = new ArrayList();
+
+        TableMeta meta = Metadata.requireTable(table);
+
+        for (String column : meta.getColumnNames()) {
+
+            String label = table + "_" + column;
+
+            if (!labels.containsKey(label)) {
+                continue;
+            }
+
+            keys.add(column);
+            indexes.add(labels.get(label));
+            columnTypes.add(types.get(label));
+            nested.add(null);
+
+            String referencedTable = meta.getReferencedTable(column);
+
+            if (referencedTable != null && lookups.contains(column)) {
+                keys.add(referencedTable);
+                indexes.add(-1);
+                columnTypes.add(0);
+                nested.add(null);
+            } else if (referencedTable != null && !path.contains(referencedTable) && labels.containsKey(referencedTable + "_" + Metadata.requireTable(referencedTable).getPrimaryKey())) {
+                keys.add(referencedTable);
+                indexes.add(-1);
+                columnTypes.add(0);
+                nested.add(RowMapper.compile(referencedTable, labels, types, path, Collections.<String>emptySet()));
+            }
+        }
+
+        path.remove(table);
+
+        return new RowMapper(table, keys, indexes, columnTypes, nested);
+    }
+
+    /**
+     * Tabela mapeada
+     *
+     * @return String
+     */
+    String getTable() {
+        return this.table;
+    }
+
+    /**
+     * Posição da chave nos valores lidos
+     *
+     * @param key Nome da coluna ou da tabela referenciada
+     * @return int Posição ou -1 se não existir
+     */
+    int indexOf(String key) {
+
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.keys[i].equals(key)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Chaves na ordem dos valores lidos
+     *
+     * @return String[]
+     */
+    String[] getKeys() {
+        return this.keys.clone();
+    }
+
+    /**
+     * JSON com todas as chaves nulas, para referências não encontradas
+     *
+     * @return JSONObject
+     */
+    JSONObject empty() {
+        return this.toJSON(new Object[this.keys.length]);
+    }
+
+    /**
+     * Lê os valores da linha atual na ordem das chaves
+     *
+     * @param rs
+     * @return Object[]
+     * @throws DatabaseException
+     */
+    Object[] read(ResultSet rs) throws DatabaseException {
+
+        Object[] values = new Object[this.keys.length];
+
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.indexes[i] > 0) {
+                values[i] = DataType.getValue(rs, this.indexes[i], this.types[i]);
+            } else if (this.nested[i] != null) {
+                values[i] = this.nested[i].map(rs);
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Monta o JSON a partir dos valores lidos
+     *
+     * @param values
+     * @return JSONObject
+     */
+    JSONObject toJSON(Object[] values) {
+
+        JSONObject data = new JSONObject();
+
+        for (int i = 0; i < this.keys.length; i++) {
+            data.put(this.keys[i], values[i]);
+        }
+
+        return data;
+    }
+
+    /**
+     * JSON da linha atual do <i>ResultSet</i>
+     *
+     * @param rs
+     * @return JSONObject
+     * @throws DatabaseException
+     */
+    JSONObject map(ResultSet rs) throws DatabaseException {
+        return this.toJSON(this.read(rs));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifica periodicamente o catálogo do banco de dados e o 'orm.json',
+ * atualizando os metadados sem reiniciar o servidor.<br>
+ * Ativado pela propriedade <i>metadata_refresh</i> (segundos) do arquivo
+ * 'config/database/connection.properties'.<br>
+ * A cada verificação consulta apenas um resumo do catálogo (contagens e
+ * identificadores das tabelas, colunas e chaves); o catálogo inteiro só é lido
+ * quando o resumo muda.
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+final class SchemaWatcher {
+
+    private static ScheduledExecutorService executor;
+
+    /**
+     * Resumo do catálogo na última leitura (null: ler na próxima verificação)
+     */
+    private static String fingerprint;
+
+    private SchemaWatcher() {
+    }
+
+    /**
+     * Inicia a verificação. Chamadas seguintes não fazem nada.
+     *
+     * @param seconds Intervalo entre as verificações
+     */
+    static synchronized void start(long seconds) {
+
+        if (executor != null || seconds <= 0) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "schema-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+
+        executor.scheduleWithFixedDelay(SchemaWatcher::check, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Encerra a verificação
+     */
+    static synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private static void check() {
+
+        try (java.sql.Connection connection = Connection.connect()) {
+
+            String current = null;
+
+            try {
+                current = Catalog.fingerprint(connection);
+            } catch (DatabaseException ex) {
+                System.err.println(ex);
+            }
+
+            if (current == null || !current.equals(fingerprint)) {
+                Metadata.refresh(connection);
+                fingerprint = current;
+            }
+
+        } catch (Exception ex) {
+            System.err.println(ex);
+        }
+
+        try {
+            ORM.refresh();
+        } catch (Exception ex) {
+            System.err.println(ex);
+        }
+    }
+}
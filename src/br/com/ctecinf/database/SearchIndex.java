@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import br.com.ctecinf.json.JSONObject;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Índice de pesquisa em memória (trigramas) das colunas de texto de uma
+ * tabela, para a pesquisa por termo do <i>Controller</i> sem varrer a tabela
+ * com <i>LIKE</i>.<br>
+ * Ativado por tabela no 'orm.json':<br>
+ * <code>"search":"nome,fantasia,cpf_cnpj"</code><br>
+ * O índice é montado em segundo plano na primeira pesquisa e mantido pelas
+ * gravações do <i>Update</i>, aplicadas em ordem na mesma thread, depois da
+ * montagem. Enquanto não estiver pronto, <i>search</i> retorna NULL e a
+ * consulta usa <i>Clause.like</i>.
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class SearchIndex {
+
+    private static final int FETCH_SIZE = 1000;
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final Map<String, Index> INDEXES = new ConcurrentHashMap();
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor((Runnable r) -> {
+        Thread thread = new Thread(r, "search-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SearchIndex() {
+    }
+
+    /**
+     * Verifica se a tabela tem índice de pesquisa configurado
+     *
+     * @param table
+     * @return boolean
+     * @throws DatabaseException
+     */
+    public static boolean isEnabled(String table) throws DatabaseException {
+        return ORM.getSearch(table) != null;
+    }
+
+    /**
+     * Pesquisa o termo no índice
+     *
+     * @param table
+     * @param term Termo pesquisado
+     * @param limit Máximo de chaves retornadas
+     * @return List Chaves primárias em ordem de relevância ou NULL se a tabela
+     * não tem índice ou o índice ainda está sendo montado
+     * @throws DatabaseException
+     */
+    public static List<Object> search(String table, String term, int limit) throws DatabaseException {
+
+        Index index = SearchIndex.getIndex(table);
+
+        if (index == null || !index.ready) {
+            return null;
+        }
+
+        return index.search(SearchIndex.normalize(term), limit);
+    }
+
+    /**
+     * Atualiza o índice depois da gravação do registro (chamado pelo
+     * <i>Update</i>)
+     *
+     * @param table
+     * @param operation Update.INSERT | Update.UPDATE | Update.DELETE
+     * @param id Chave primária do registro ou NULL se desconhecida
+     */
+    static void changed(String table, String operation, Object id) {
+
+        Index index = INDEXES.get(table.toLowerCase().trim());
+
+        if (index == null) {
+            return;
+        }
+
+        if (id == null) {
+            SearchIndex.invalidate(table);
+            return;
+        }
+
+        // Na mesma fila da montagem: aplicado só depois da leitura inicial,
+        // que poderia incluir de volta o registro apagado
+        if (Update.DELETE.equals(operation)) {
+
+            synchronized (INDEXES) {
+                if (INDEXES.get(index.table) == index) {
+                    EXECUTOR.execute(() -> index.remove(id));
+                }
+            }
+
+            return;
+        }
+
+        EXECUTOR.execute(() -> {
+
+            try (java.sql.Connection connection = Connection.open()) {
+
+                JSONObject data = ReferenceLoader.load(connection, index.table, Collections.singletonList(id)).get(id.toString());
+
+                if (data == null) {
+                    index.remove(id);
+                } else {
+                    index.add(id, data);
+                }
+
+            } catch (DatabaseException | SQLException ex) {
+                SearchIndex.invalidate(index.table);
+            }
+        });
+    }
+
+    /**
+     * Descarta o índice da tabela (é montado novamente na próxima pesquisa)
+     *
+     * @param table
+     */
+    public static void invalidate(String table) {
+        INDEXES.remove(table.toLowerCase().trim());
+    }
+
+    /**
+     * Descarta o índice das tabelas
+     *
+     * @param tables
+     */
+    public static void invalidate(Collection<String> tables) {
+        for (String table : tables) {
+            SearchIndex.invalidate(table);
+        }
+    }
+
+    /**
+     * Descarta todos os índices
+     */
+    public static void clear() {
+        INDEXES.clear();
+    }
+
+    private static Index getIndex(String table) throws DatabaseException {
+
+        table = table.toLowerCase().trim();
+
+        Index index = INDEXES.get(table);
+
+        if (index == null) {
+
+            String[] columns = ORM.getSearch(table);
+
+            if (columns == null) {
+                return null;
+            }
+
+            index = new Index(table, columns);
+
+            // Registro e montagem juntos: nenhuma exclusão entra na fila antes
+            // da montagem
+            synchronized (INDEXES) {
+
+                Index previous = INDEXES.putIfAbsent(table, index);
+
+                if (previous != null) {
+                    return previous;
+                }
+
+                Index building = index;
+
+                EXECUTOR.execute(() -> {
+                    try {
+                        building.build();
+                    } catch (DatabaseException ex) {
+                        INDEXES.remove(building.table, building);
+                        System.err.println(ex);
+                    }
+                });
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Minúsculas, sem acentos e com as palavras separadas por um espaço
+     *
+     * @param value
+     * @return String
+     */
+    static String normalize(Object value) {
+
+        if (value == null) {
+            return "";
+        }
+
+        String text = Normalizer.normalize(value.toString(), Normalizer.Form.NFD);
+        text = MARKS.matcher(text).replaceAll("").toLowerCase();
+
+        return SEPARATORS.matcher(text).replaceAll(" ").trim();
+    }
+
+    /**
+     * Trigramas indexados da palavra: os do início ("  a", " ab") e os de
+     * dentro, para encontrar prefixos e trechos da palavra
+     */
+    private static void indexGrams(String word, Set<String> grams) {
+
+        String padded = "  " + word;
+
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + 3));
+        }
+    }
+
+    /**
+     * Trigramas pesquisados: palavras curtas só casam com o início das
+     * palavras indexadas
+     */
+    private static void searchGrams(String word, Set<String> grams) {
+
+        if (word.length() < 3) {
+            SearchIndex.indexGrams(word, grams);
+            return;
+        }
+
+        for (int i = 0; i + 3 <= word.length(); i++) {
+            grams.add(word.substring(i, i + 3));
+        }
+    }
+
+    /**
+     * Índice invertido de uma tabela
+     */
+    private static final class Index {
+
+        private final String table;
+        private final String[] columns;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<String, String> texts = new HashMap();
+        private final Map<String, Object> keys = new HashMap();
+        private final Map<String, Set<String>> postings = new HashMap();
+
+        private volatile boolean ready;
+
+        private Index(String table, String[] columns) {
+            this.table = table;
+            this.columns = columns;
+        }
+
+        private void build() throws DatabaseException {
+
+            QueryTemplate template = QueryTemplate.get(this.table);
+            String pk = Metadata.requireTable(this.table).getPrimaryKey();
+
+            try (java.sql.Connection connection = Connection.open()) {
+
+                // Postgres só usa cursor no servidor fora do modo auto-commit
+                if (connection.getMetaData().getURL().toLowerCase().contains("postgres")) {
+                    connection.setAutoCommit(false);
+                }
+
+                try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+
+                    st.setFetchSize(FETCH_SIZE);
+
+                    try (ResultSet rs = st.executeQuery(template.getFlatQuery())) {
+
+                        RowMapper mapper = null;
+
+                        while (rs.next()) {
+
+                            if (mapper == null) {
+                                mapper = template.getFlatMapper(rs);
+                            }
+
+                            JSONObject data = mapper.map(rs);
+                            this.add(data.get(pk), data);
+                        }
+                    }
+                }
+
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+
+            this.ready = true;
+        }
+
+        private void add(Object id, JSONObject data) {
+
+            if (id == null) {
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder();
+
+            for (String column : this.columns) {
+
+                String value = SearchIndex.normalize(data.get(column));
+
+                if (!value.isEmpty()) {
+                    sb.append(sb.length() == 0 ? "" : " ").append(value);
+                }
+            }
+
+            String text = sb.toString();
+            Set<String> grams = new HashSet();
+
+            for (String word : text.split(" ")) {
+                if (!word.isEmpty()) {
+                    SearchIndex.indexGrams(word, grams);
+                }
+            }
+
+            String key = id.toString();
+
+            this.lock.writeLock().lock();
+
+            try {
+
+                this.unindex(key);
+
+                this.texts.put(key, text);
+                this.keys.put(key, id);
+
+                for (String gram : grams) {
+                    this.postings.computeIfAbsent(gram, (g) -> new HashSet()).add(key);
+                }
+
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+
+        private void remove(Object id) {
+
+            this.lock.writeLock().lock();
+
+            try {
+                this.unindex(id.toString());
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+
+        private void unindex(String key) {
+
+            String text = this.texts.remove(key);
+            this.keys.remove(key);
+
+            if (text == null) {
+                return;
+            }
+
+            Set<String> grams = new HashSet();
+
+            for (String word : text.split(" ")) {
+                if (!word.isEmpty()) {
+                    SearchIndex.indexGrams(word, grams);
+                }
+            }
+
+            for (String gram : grams) {
+
+                Set<String> set = this.postings.get(gram);
+
+                if (set != null) {
+
+                    set.remove(key);
+
+                    if (set.isEmpty()) {
+                        this.postings.remove(gram);
+                    }
+                }
+            }
+        }
+
+        private List<Object> search(String term, int limit) {
+
+            if (term.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            String[] words = term.split(" ");
+            Set<String> grams = new LinkedHashSet();
+
+            for (String word : words) {
+                SearchIndex.searchGrams(word, grams);
+            }
+
+            List<Match> matches = new ArrayList();
+
+            this.lock.readLock().lock();
+
+            try {
+
+                // Intersecção começando pela menor lista de chaves
+                List<Set<String>> lists = new ArrayList();
+
+                for (String gram : grams) {
+
+                    Set<String> set = this.postings.get(gram);
+
+                    if (set == null) {
+                        return Collections.emptyList();
+                    }
+
+                    lists.add(set);
+                }
+
+                lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+
+                for (String key : lists.get(0)) {
+
+                    boolean all = true;
+
+                    for (int i = 1; i < lists.size() && all; i++) {
+                        all = lists.get(i).contains(key);
+                    }
+
+                    if (!all) {
+                        continue;
+                    }
+
+                    String text = this.texts.get(key);
+                    int score = Index.score(text, term, words);
+
+                    if (score > 0) {
+                        matches.add(new Match(this.keys.get(key), score, text.length()));
+                    }
+                }
+
+            } finally {
+                this.lock.readLock().unlock();
+            }
+
+            matches.sort((a, b) -> a.score != b.score ? Integer.compare(b.score, a.score) : Integer.compare(a.length, b.length));
+
+            List<Object> result = new ArrayList();
+
+            for (int i = 0; i < matches.size() && i < limit; i++) {
+                result.add(matches.get(i).key);
+            }
+
+            return result;
+        }
+
+        /**
+         * 3: começa com o termo, 2: todas as palavras são início de palavra,
+         * 1: todas as palavras aparecem no texto, 0: não confere
+         */
+        private static int score(String text, String term, String[] words) {
+
+            if (text.startsWith(term)) {
+                return 3;
+            }
+
+            String spaced = " " + text;
+            boolean prefix = true;
+
+            for (String word : words) {
+
+                if (!text.contains(word)) {
+                    return 0;
+                }
+
+                prefix = prefix && spaced.contains(" " + word);
+            }
+
+            return prefix ? 2 : 1;
+        }
+    }
+
+    private static final class Match {
+
+        private final Object key;
+        private final int score;
+        private final int length;
+
+        private Match(Object key, int score, int length) {
+            this.key = key;
+            this.score = score;
+            this.length = length;
+        }
+    }
+}
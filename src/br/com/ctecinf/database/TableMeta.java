@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Metadados imutáveis de uma tabela. Pode ser compartilhado entre threads.
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public final class TableMeta {
+
+    private final String name;
+    private final String sequence;
+    private final String primaryKey;
+    private final List<ColumnMeta> columns;
+    private final List<String> columnNames;
+    private final Map<String, ColumnMeta> columnsByName;
+    private final List<ForeignKeyMeta> foreignKeys;
+    private final Map<String, ForeignKeyMeta> foreignKeysByColumn;
+
+    /**
+     * Construtor
+     *
+     * @param name Nome da tabela
+     * @param sequence Sequenciador da chave primária ou NULL
+     * @param primaryKey Coluna chave primária ou NULL
+     * @param columns Colunas na ordem da tabela
+     * @param foreignKeys Chaves estrangeiras
+     */
+    public TableMeta(String name, String sequence, String primaryKey, List<ColumnMeta> columns, List<ForeignKeyMeta> foreignKeys) {
+
+        this.name = name;
+        this.sequence = sequence;
+        this.primaryKey = primaryKey;
+        this.columns = Collections.unmodifiableList(new ArrayList(columns));
+        this.foreignKeys = Collections.unmodifiableList(new ArrayList(foreignKeys));
+
+        List<String> names = new ArrayList();
+        Map<String, ColumnMeta> byName = new HashMap();
+
+        for (ColumnMeta column : columns) {
+            names.add(column.getName());
+            byName.put(column.getName(), column);
+        }
+
+        Map<String, ForeignKeyMeta> byColumn = new HashMap();
+
+        for (ForeignKeyMeta foreignKey : foreignKeys) {
+            byColumn.put(foreignKey.getColumn(), foreignKey);
+        }
+
+        this.columnNames = Collections.unmodifiableList(names);
+        this.columnsByName = Collections.unmodifiableMap(byName);
+        this.foreignKeysByColumn = Collections.unmodifiableMap(byColumn);
+    }
+
+    /**
+     * Nome da tabela
+     *
+     * @return String
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sequenciador da chave primária
+     *
+     * @return String ou NULL
+     */
+    public String getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Coluna chave primária
+     *
+     * @return String ou NULL
+     */
+    public String getPrimaryKey() {
+        return primaryKey;
+    }
+
+    /**
+     * Colunas na ordem da tabela
+     *
+     * @return List imutável
+     */
+    public List<ColumnMeta> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Nome das colunas na ordem da tabela
+     *
+     * @return List imutável
+     */
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    /**
+     * Número de colunas
+     *
+     * @return int
+     */
+    public int getColumnCount() {
+        return columns.size();
+    }
+
+    /**
+     * Coluna pela posição
+     *
+     * @param index Posição (começa em 0)
+     * @return ColumnMeta
+     */
+    public ColumnMeta getColumn(int index) {
+        return columns.get(index);
+    }
+
+    /**
+     * Coluna pelo nome
+     *
+     * @param name Nome da coluna
+     * @return ColumnMeta ou NULL
+     */
+    public ColumnMeta getColumn(String name) {
+        return columnsByName.get(name);
+    }
+
+    /**
+     * Posição da coluna
+     *
+     * @param name Nome da coluna
+     * @return int Posição ou -1
+     */
+    public int indexOf(String name) {
+        ColumnMeta column = columnsByName.get(name);
+        return column == null ? -1 : column.getIndex();
+    }
+
+    /**
+     * Chaves estrangeiras
+     *
+     * @return List imutável
+     */
+    public List<ForeignKeyMeta> getForeignKeys() {
+        return foreignKeys;
+    }
+
+    /**
+     * Chave estrangeira da coluna
+     *
+     * @param column Nome da coluna
+     * @return ForeignKeyMeta ou NULL
+     */
+    public ForeignKeyMeta getForeignKey(String column) {
+        return foreignKeysByColumn.get(column);
+    }
+
+    /**
+     * Tabela referenciada pela coluna
+     *
+     * @param column Nome da coluna
+     * @return String ou NULL
+     */
+    public String getReferencedTable(String column) {
+        ForeignKeyMeta foreignKey = foreignKeysByColumn.get(column);
+        return foreignKey == null ? null : foreignKey.getReferencedTable();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (!(obj instanceof TableMeta)) {
+            return false;
+        }
+
+        TableMeta t = (TableMeta) obj;
+
+        return name.equals(t.name) && Objects.equals(sequence, t.sequence) && Objects.equals(primaryKey, t.primaryKey) && columns.equals(t.columns) && foreignKeys.equals(t.foreignKeys);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
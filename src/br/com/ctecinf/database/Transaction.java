@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.database;
+
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unidade de trabalho: várias gravações, em várias tabelas, em uma única
+ * conexão e um único <i>commit</i>.<br>
+ * <i>add</i> guarda a gravação; no <i>flush</i> (ou <i>commit</i>) as
+ * gravações são executadas em lote, por tabela: inclusões das tabelas
+ * referenciadas antes das que as referenciam, inclusões ou alterações
+ * (<i>Update.UPSERT</i>) na mesma ordem, depois as alterações e por último as
+ * exclusões, na ordem inversa das inclusões. <i>execute</i> grava
+ * na hora e retorna o ID gerado (ex. cabeçalho da venda antes dos itens).
+ *
+ * <pre>
+ * try (Transaction tx = new Transaction()) {
+ *     Long id = tx.execute(Update.INSERT, "venda", venda);
+ *     for (LinkedHashMap&lt;String, Object&gt; item : itens) {
+ *         item.put("venda_id", id);
+ *         tx.add(Update.INSERT, "venda_item", item);
+ *     }
+ *     tx.commit();
+ * }
+ * </pre>
+ *
+ * Sem <i>commit</i>, <i>close</i> desfaz a transação.
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br/
+ */
+public class Transaction implements AutoCloseable {
+
+    private final java.sql.Connection connection;
+    private final boolean autoCommit;
+
+    private final List<Operation> pending = new ArrayList();
+    private final List<Change> changes = new ArrayList();
+    private final Map<Savepoint, Integer> savepoints = new IdentityHashMap();
+
+    /**
+     * Construtor
+     *
+     * @throws DatabaseException
+     */
+    public Transaction() throws DatabaseException {
+
+        connection = Connection.open();
+
+        try {
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+        } catch (SQLException ex) {
+            this.closeQuietly();
+            throw new DatabaseException(ex);
+        }
+    }
+
+    /**
+     * Conexão da transação
+     *
+     * @return java.sql.Connection
+     */
+    public java.sql.Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Guarda a gravação para o próximo <i>flush</i>. Na inclusão em tabela com
+     * IDs reservados em bloco (<i>IdAllocator</i>), o ID é colocado nos dados
+     * na hora, para ser usado nos registros que o referenciam.
+     *
+     * @param operation Update.INSERT | Update.UPDATE | Update.DELETE |
+     * Update.UPSERT | Update.PARTIAL
+     * @param table Tabela
+     * @param data Dados do registro
+     * @return Transaction
+     * @throws DatabaseException
+     */
+    public Transaction add(String operation, String table, LinkedHashMap<String, Object> data) throws DatabaseException {
+
+        table = table.toLowerCase().trim();
+
+        if (Update.INSERT.equals(operation) && IdAllocator.isEnabled(table)) {
+
+            String columnId = Metadata.getPrimaryKeyName(table);
+
+            if (data.get(columnId) == null) {
+                data.put(columnId, IdAllocator.next(table));
+            }
+        }
+
+        pending.add(new Operation(operation, table, data));
+
+        return this;
+    }
+
+    /**
+     * Executa as gravações pendentes e grava o registro na hora
+     *
+     * @param operation Update.INSERT | Update.UPDATE | Update.DELETE |
+     * Update.UPSERT | Update.PARTIAL
+     * @param table Tabela
+     * @param data Dados do registro
+     * @return Long ID gerado na inclusão
+     * @throws DatabaseException
+     */
+    public Long execute(String operation, String table, LinkedHashMap<String, Object> data) throws DatabaseException {
+
+        this.flush();
+
+        try (Update update = this.create(operation, table.toLowerCase().trim())) {
+            return update.execute(data);
+        } catch (DatabaseException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new DatabaseException(ex);
+        }
+    }
+
+    /**
+     * Executa as gravações pendentes em lote, na ordem das dependências entre
+     * as tabelas
+     *
+     * @return int Total de registros afetados
+     * @throws DatabaseException
+     */
+    public int flush() throws DatabaseException {
+
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        // Lotes por operação e tabela, na ordem em que apareceram
+        Map<String, List<LinkedHashMap<String, Object>>> batches = new LinkedHashMap();
+
+        for (Operation op : pending) {
+            batches.computeIfAbsent(op.operation + "#" + op.table, (k) -> new ArrayList()).add(op.data);
+        }
+
+        pending.clear();
+
+        Map<String, Integer> depth = new HashMap();
+        List<String> inserts = new ArrayList();
+        List<String> upserts = new ArrayList();
+        List<String> updates = new ArrayList();
+        List<String> partials = new ArrayList();
+        List<String> deletes = new ArrayList();
+
+        for (String key : batches.keySet()) {
+
+            String operation = key.substring(0, key.indexOf('#'));
+            String table = key.substring(key.indexOf('#') + 1);
+
+            Transaction.depth(table, depth, new HashSet());
+
+            switch (operation) {
+                case Update.INSERT:
+                    inserts.add(table);
+                    break;
+                case Update.UPSERT:
+                    upserts.add(table);
+                    break;
+                case Update.UPDATE:
+                    updates.add(table);
+                    break;
+                case Update.PARTIAL:
+                    partials.add(table);
+                    break;
+                case Update.DELETE:
+                    deletes.add(table);
+                    break;
+                default:
+                    throw new DatabaseException("Operação inválida: " + operation);
+            }
+        }
+
+        inserts.sort((a, b) -> Integer.compare(depth.get(a), depth.get(b)));
+        upserts.sort((a, b) -> Integer.compare(depth.get(a), depth.get(b)));
+        deletes.sort((a, b) -> Integer.compare(depth.get(b), depth.get(a)));
+
+        int total = 0;
+
+        total += this.executeBatches(Update.INSERT, inserts, batches);
+        total += this.executeBatches(Update.UPSERT, upserts, batches);
+        total += this.executeBatches(Update.UPDATE, updates, batches);
+        total += this.executeBatches(Update.PARTIAL, partials, batches);
+        total += this.executeBatches(Update.DELETE, deletes, batches);
+
+        return total;
+    }
+
+    /**
+     * Cria ponto de retorno (executa as gravações pendentes antes)
+     *
+     * @param name
+     * @return Savepoint
+     * @throws DatabaseException
+     */
+    public Savepoint savepoint(String name) throws DatabaseException {
+
+        this.flush();
+
+        try {
+            Savepoint savepoint = connection.setSavepoint(name);
+            savepoints.put(savepoint, changes.size());
+            return savepoint;
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
+
+    /**
+     * Desfaz as gravações feitas depois do ponto de retorno e descarta as
+     * pendentes
+     *
+     * @param savepoint
+     * @throws DatabaseException
+     */
+    public void rollback(Savepoint savepoint) throws DatabaseException {
+
+        pending.clear();
+
+        try {
+            connection.rollback(savepoint);
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+
+        Integer size = savepoints.get(savepoint);
+
+        if (size != null) {
+            changes.subList(Math.min(size, changes.size()), changes.size()).clear();
+        }
+    }
+
+    /**
+     * Executa as gravações pendentes e confirma a transação
+     *
+     * @throws DatabaseException
+     */
+    public void commit() throws DatabaseException {
+
+        this.flush();
+
+        try {
+            connection.commit();
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+
+        savepoints.clear();
+
+        List<Change> list = new ArrayList(changes);
+        changes.clear();
+
+        for (Change change : list) {
+            Update.changed(change.table, change.operation, change.id, change.rows, change.columns);
+        }
+    }
+
+    /**
+     * Desfaz a transação
+     *
+     * @throws DatabaseException
+     */
+    public void rollback() throws DatabaseException {
+
+        pending.clear();
+        changes.clear();
+        savepoints.clear();
+
+        try {
+            connection.rollback();
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
+
+    /**
+     * Guarda a gravação do <i>Update</i> para avisar depois do
+     * <i>commit</i>
+     */
+    void changed(String table, String operation, Object id, int rows, Set<String> columns) {
+        if (rows > 0) {
+            changes.add(new Change(table, operation, id, rows, columns));
+        }
+    }
+
+    private int executeBatches(String operation, List<String> tables, Map<String, List<LinkedHashMap<String, Object>>> batches) throws DatabaseException {
+
+        int total = 0;
+
+        for (String table : tables) {
+            try (Update update = this.create(operation, table)) {
+                total += update.executeBatch(batches.get(operation + "#" + table));
+            } catch (DatabaseException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+
+        return total;
+    }
+
+    private Update create(String operation, String table) throws DatabaseException {
+
+        Update update = new Update(table, this);
+        update.createSQL(operation);
+
+        return update;
+    }
+
+    /**
+     * Profundidade da tabela no grafo das chaves estrangeiras (0 não
+     * referencia outra tabela)
+     */
+    private static int depth(String table, Map<String, Integer> depth, Set<String> visiting) throws DatabaseException {
+
+        Integer value = depth.get(table);
+
+        if (value != null) {
+            return value;
+        }
+
+        // Referência circular: corta o ciclo
+        if (!visiting.add(table)) {
+            return 0;
+        }
+
+        int max = 0;
+
+        for (ForeignKeyMeta foreignKey : Metadata.requireTable(table).getForeignKeys()) {
+
+            String referenced = foreignKey.getReferencedTable();
+
+            if (!referenced.equals(table)) {
+                max = Math.max(max, Transaction.depth(referenced, depth, visiting) + 1);
+            }
+        }
+
+        visiting.remove(table);
+        depth.put(table, max);
+
+        return max;
+    }
+
+    private void closeQuietly() {
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            // Conexão já fechada
+        }
+    }
+
+    @Override
+    public void close() throws DatabaseException {
+
+        try {
+
+            if (!connection.isClosed()) {
+
+                // Sem commit: desfaz (depois do commit não há o que desfazer)
+                this.rollback();
+
+                connection.setAutoCommit(autoCommit);
+            }
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        } finally {
+            this.closeQuietly();
+        }
+    }
+
+    /**
+     * Gravação pendente
+     */
+    private static final class Operation {
+
+        private final String operation;
+        private final String table;
+        private final LinkedHashMap<String, Object> data;
+
+        private Operation(String operation, String table, LinkedHashMap<String, Object> data) {
+            this.operation = operation;
+            this.table = table;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Gravação executada, avisada depois do commit
+     */
+    private static final class Change {
+
+        private final String table;
+        private final String operation;
+        private final Object id;
+        private final int rows;
+        private final Set<String> columns;
+
+        private Change(String table, String operation, Object id, int rows, Set<String> columns) {
+            this.table = table;
+            this.operation = operation;
+            this.id = id;
+            this.rows = rows;
+            this.columns = columns;
+        }
+    }
+}
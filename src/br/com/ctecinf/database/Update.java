@@ -16,12 +16,21 @@
  */
 package br.com.ctecinf.database;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -32,9 +41,25 @@ import java.util.stream.Collectors;
  */
 public class Update implements AutoCloseable {
 
+    public static final String INSERT = "insert";
+    public static final String UPDATE = "update";
+    public static final String DELETE = "delete";
+    public static final String UPSERT = "upsert";
+    public static final String PARTIAL = "partial";
+
+    private static final Pattern PARAMETER = Pattern.compile("(?<!:):(\\w+)");
+
     private final String table;
     private final java.sql.Connection connection;
+    private final Transaction transaction;
+    private final Map<String, Plan> plans = new HashMap();
+    private final Map<String, PreparedStatement> statements = new HashMap();
     private StringBuilder sql;
+    private String operation;
+    private Plan plan;
+    private boolean partial;
+    private String versionColumn;
+    private boolean versionSet;
 
     /**
      * Construtor
@@ -44,9 +69,24 @@ public class Update implements AutoCloseable {
      */
     public Update(String table) throws DatabaseException {
         this.table = table;
+        this.transaction = null;
         connection = Connection.open();
     }
 
+    /**
+     * Construtor: grava na conexão da transação, que não é fechada pelo
+     * <i>Update</i>
+     *
+     * @param table Nome da tabela
+     * @param transaction Transação
+     * @throws DatabaseException
+     */
+    public Update(String table, Transaction transaction) throws DatabaseException {
+        this.table = table;
+        this.transaction = transaction;
+        connection = transaction.getConnection();
+    }
+
     /**
      * Cria SQL padrão para inserir dados na tabela
      *
@@ -58,7 +98,9 @@ public class Update implements AutoCloseable {
      * Postgres: id SERIAL NOT NULL PRIMARY KEY<br>
      * Firebird: Criar sequenciador: id BIGINT NOT NULL PRIMARY KEY | CREATE
      * SEQUENCE seq_[table_name]_id
-     * </code>
+     * </code><br>
+     * Com 'id_block' no 'connection.properties', o ID vem do
+     * <i>IdAllocator</i>.
      */
     public void createInsertSQL() throws DatabaseException {
 
@@ -66,7 +108,10 @@ public class Update implements AutoCloseable {
         String sequence = null;
 
         try {
-            if (connection.getMetaData().getURL().toLowerCase().contains("firebird")) {
+            if (IdAllocator.isEnabled(table)) {
+                // ID reservado em bloco, informado nos dados
+                sequence = ":" + columnId;
+            } else if (connection.getMetaData().getURL().toLowerCase().contains("firebird")) {
                 sequence = "GEN_ID(" + Metadata.getSequenceName(table) + ", 1)";
             }
         } catch (SQLException ex) {
@@ -80,6 +125,10 @@ public class Update implements AutoCloseable {
             columns.remove(columns.remove(index));
         }
 
+        operation = Update.INSERT;
+        plan = null;
+        partial = false;
+
         sql = new StringBuilder();
         sql.append("INSERT INTO ");
         sql.append(table.trim());
@@ -107,6 +156,10 @@ public class Update implements AutoCloseable {
             columns.remove(columns.remove(index));
         }
 
+        operation = Update.UPDATE;
+        plan = null;
+        partial = false;
+
         sql = new StringBuilder();
         sql.append("UPDATE ");
         sql.append(table);
@@ -138,6 +191,10 @@ public class Update implements AutoCloseable {
 
         String columnId = Metadata.getPrimaryKeyName(table);
 
+        operation = Update.DELETE;
+        plan = null;
+        partial = false;
+
         sql = new StringBuilder();
         sql.append("DELETE FROM ");
         sql.append(table);
@@ -147,6 +204,181 @@ public class Update implements AutoCloseable {
         sql.append(columnId);
     }
 
+    /**
+     * Cria SQL padrão para incluir ou alterar o registro pela chave primária
+     * (que deve estar nos dados), em uma única instrução:<br>
+     * <code>
+     * Firebird: UPDATE OR INSERT ... MATCHING<br>
+     * Postgres: INSERT ... ON CONFLICT DO UPDATE<br>
+     * Mysql: INSERT ... ON DUPLICATE KEY UPDATE<br>
+     * Derby: MERGE
+     * </code><br>
+     * A chave informada é gravada como veio. Postgres (SERIAL): a sequência
+     * não avança com a chave informada e as inclusões seguintes pelo
+     * <i>createInsertSQL</i> podem repetir a chave (ajustar com
+     * <code>setval</code>). Derby: a chave 'GENERATED ALWAYS AS IDENTITY' não
+     * aceita valor informado; usar 'GENERATED BY DEFAULT AS IDENTITY' (senão
+     * lança <i>DatabaseException</i>), que também não avança com a chave
+     * informada (ajustar com <code>ALTER TABLE ... ALTER COLUMN ... RESTART
+     * WITH</code>).
+     *
+     * @throws DatabaseException
+     */
+    public void createUpsertSQL() throws DatabaseException {
+
+        String columnId = Metadata.getPrimaryKeyName(table);
+        List<String> columns = Metadata.getColumnsName(table);
+
+        columns.remove(columnId);
+
+        List<String> all = new ArrayList();
+        all.add(columnId);
+        all.addAll(columns);
+
+        String url = Connection.getURL().toLowerCase();
+
+        operation = Update.UPSERT;
+        plan = null;
+        partial = false;
+
+        sql = new StringBuilder();
+
+        if (url.contains("firebird")) {
+
+            sql.append("UPDATE OR INSERT INTO ").append(table);
+            sql.append(" (").append(String.join(", ", all)).append(")");
+            sql.append(" VALUES (:").append(String.join(", :", all)).append(")");
+            sql.append(" MATCHING (").append(columnId).append(")");
+
+        } else if (url.contains("postgres")) {
+
+            sql.append("INSERT INTO ").append(table);
+            sql.append(" (").append(String.join(", ", all)).append(")");
+            sql.append(" VALUES (:").append(String.join(", :", all)).append(")");
+            sql.append(" ON CONFLICT (").append(columnId).append(")");
+            sql.append(columns.isEmpty() ? " DO NOTHING" : " DO UPDATE SET " + columns.stream().map(c -> c + " = EXCLUDED." + c).collect(Collectors.joining(", ")));
+
+        } else if (url.contains("mysql")) {
+
+            sql.append("INSERT INTO ").append(table);
+            sql.append(" (").append(String.join(", ", all)).append(")");
+            sql.append(" VALUES (:").append(String.join(", :", all)).append(")");
+            sql.append(" ON DUPLICATE KEY UPDATE ");
+            sql.append(columns.isEmpty() ? columnId + " = " + columnId : columns.stream().map(c -> c + " = VALUES(" + c + ")").collect(Collectors.joining(", ")));
+
+        } else if (url.contains("derby")) {
+
+            if (this.isGeneratedAlways(columnId)) {
+                sql = null;
+                throw new DatabaseException("Upsert não suportado: a chave '" + columnId + "' da tabela '" + table + "' é GENERATED ALWAYS AS IDENTITY (usar GENERATED BY DEFAULT).");
+            }
+
+            sql.append("MERGE INTO ").append(table);
+            sql.append(" USING SYSIBM.SYSDUMMY1 ON ").append(table).append(".").append(columnId).append(" = :").append(columnId);
+
+            if (!columns.isEmpty()) {
+                sql.append(" WHEN MATCHED THEN UPDATE SET ").append(columns.stream().map(c -> c + " = :" + c).collect(Collectors.joining(", ")));
+            }
+
+            sql.append(" WHEN NOT MATCHED THEN INSERT (").append(String.join(", ", all)).append(")");
+            sql.append(" VALUES (:").append(String.join(", :", all)).append(")");
+
+        } else {
+            throw new DatabaseException("Upsert não suportado: " + url);
+        }
+    }
+
+    /**
+     * Derby: coluna identidade que não aceita valor informado (sem
+     * 'GENERATED BY DEFAULT', que fica no valor padrão da coluna)
+     */
+    private boolean isGeneratedAlways(String column) throws DatabaseException {
+
+        String query = "SELECT 1 FROM SYS.SYSCOLUMNS c JOIN SYS.SYSTABLES t ON t.TABLEID = c.REFERENCEID WHERE UPPER(t.TABLENAME) = ? AND UPPER(c.COLUMNNAME) = ? AND c.AUTOINCREMENTINC IS NOT NULL AND c.COLUMNDEFAULT IS NULL";
+
+        try (PreparedStatement ps = connection.prepareStatement(query)) {
+
+            ps.setString(1, table.toUpperCase().trim());
+            ps.setString(2, column.toUpperCase().trim());
+
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
+
+    /**
+     * Cria SQL padrão da operação
+     *
+     * @param operation Update.INSERT | Update.UPDATE | Update.DELETE |
+     * Update.UPSERT | Update.PARTIAL
+     * @throws DatabaseException
+     */
+    public void createSQL(String operation) throws DatabaseException {
+
+        switch (operation) {
+            case Update.INSERT:
+                this.createInsertSQL();
+                break;
+            case Update.UPDATE:
+                this.createUpdateSQL();
+                break;
+            case Update.DELETE:
+                this.createDeleteSQL();
+                break;
+            case Update.UPSERT:
+                this.createUpsertSQL();
+                break;
+            case Update.PARTIAL:
+                this.createPartialUpdateSQL();
+                break;
+            default:
+                throw new DatabaseException("Operação inválida: " + operation);
+        }
+    }
+
+    /**
+     * Cria SQL para alterar somente as colunas presentes nos dados; as
+     * colunas que não vierem nos dados não são alteradas. O SQL é criado uma
+     * vez para cada conjunto de colunas.
+     *
+     * @throws DatabaseException
+     */
+    public void createPartialUpdateSQL() throws DatabaseException {
+
+        Metadata.requireTable(table);
+
+        if (!versionSet) {
+            versionColumn = ORM.getVersion(table);
+            plans.clear();
+        }
+
+        operation = Update.UPDATE;
+        plan = null;
+        partial = true;
+        sql = null;
+    }
+
+    /**
+     * Controle de concorrência otimista na alteração parcial: a coluna de
+     * versão é incrementada e o registro só é alterado se a versão enviada
+     * nos dados for a atual; senão <i>execute</i> lança
+     * <i>DatabaseException</i> (também quando a versão não vem nos dados).
+     * Padrão: <i>"version"</i> da tabela no 'orm.json'.
+     *
+     * @param column Coluna de versão (numérica) ou NULL para não verificar
+     * @return Update
+     */
+    public Update setVersionColumn(String column) {
+        versionColumn = column == null ? null : column.toLowerCase().trim();
+        versionSet = true;
+        plans.clear();
+        return this;
+    }
+
     /**
      * Executa o SQL no banco de dados
      *
@@ -156,54 +388,311 @@ public class Update implements AutoCloseable {
      */
     public Long execute(LinkedHashMap<String, Object> data) throws DatabaseException {
 
-        String update = sql.toString();
-        Long id = null;
+        Map<String, Object> values = Update.normalize(data);
+        boolean insert = Update.INSERT.equals(operation);
+        boolean allocated = insert && this.allocate(values);
 
-        for (Map.Entry<String, Object> entry : data.entrySet()) {
+        Object key = values.get(Metadata.getPrimaryKeyName(table));
+        Long id = allocated ? (Long) key : null;
+        int rows;
 
-            String key = entry.getKey().toLowerCase().trim();
-            Object value = entry.getValue();
+        Plan current = this.getPlan(values);
 
-            if (value == null) {
-                update = update.replace(" :" + key + ",", " NULL,");
-                update = update.replace(" :" + key + ")", " NULL)");
-            } else {
-                update = update.replace(" :" + key + ",", " '" + value + "',");
-                update = update.replace(" :" + key + ")", " '" + value + "')");
+        try {
+
+            PreparedStatement ps = this.getStatement(current, insert && !allocated);
+
+            Async.prepare(ps);
+
+            current.bind(ps, Metadata.requireTable(table), values);
+
+            long start = System.nanoTime();
+
+            rows = ps.executeUpdate();
+
+            if (insert && !allocated) {
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    if (rs.next()) {
+                        id = rs.getLong(1);
+                    }
+                }
             }
+
+            QueryStats.executed(current.sql, System.nanoTime() - start, rows);
+
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
         }
 
-        for (String column : Metadata.getColumnsName(table)) {
+        this.checkVersion(rows, key);
+        this.changed(insert && id != null ? id : key, rows, current.columns(Metadata.getPrimaryKeyName(table)));
 
-            if (update.contains(" :" + column + ",")) {
-                update = update.replace(" :" + column + ",", " NULL,");
-            }
+        return id;
+    }
+
+    /**
+     * Executa o SQL em lote, uma vez para cada registro
+     *
+     * @param list Registros
+     * @return int Total de registros afetados
+     * @throws DatabaseException
+     */
+    int executeBatch(List<LinkedHashMap<String, Object>> list) throws DatabaseException {
+
+        String columnId = Metadata.getPrimaryKeyName(table);
+        TableMeta meta = Metadata.requireTable(table);
+
+        // Na alteração parcial, um lote para cada conjunto de colunas
+        Map<Plan, List<Map<String, Object>>> groups = new LinkedHashMap();
+
+        for (LinkedHashMap<String, Object> data : list) {
+
+            Map<String, Object> values = Update.normalize(data);
 
-            if (update.contains(" :" + column + ")")) {
-                update = update.replace(" :" + column + ")", " NULL)");
+            if (Update.INSERT.equals(operation)) {
+                this.allocate(values);
             }
+
+            groups.computeIfAbsent(this.getPlan(values), (k) -> new ArrayList()).add(values);
         }
 
-        try (Statement st = connection.createStatement()) {
+        int total = 0;
+
+        for (Map.Entry<Plan, List<Map<String, Object>>> group : groups.entrySet()) {
 
-            st.executeUpdate(update, Statement.RETURN_GENERATED_KEYS);
+            List<Map<String, Object>> rows = group.getValue();
+            Set<String> columns = group.getKey().columns(columnId);
+            int[] counts;
+
+            try {
 
-            try (ResultSet rs = st.getGeneratedKeys()) {
-                if (rs.next()) {
-                    id = rs.getLong(1);
+                PreparedStatement ps = this.getStatement(group.getKey(), false);
+
+                Async.prepare(ps);
+
+                for (Map<String, Object> values : rows) {
+                    group.getKey().bind(ps, meta, values);
+                    ps.addBatch();
                 }
+
+                long start = System.nanoTime();
+
+                counts = ps.executeBatch();
+
+                QueryStats.executed(group.getKey().sql, System.nanoTime() - start, rows.size());
+
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
             }
 
-        } catch (SQLException ex) {
-            throw new DatabaseException(ex);
+            for (int i = 0; i < counts.length; i++) {
+
+                // SUCCESS_NO_INFO: o driver não informa o total do registro
+                int count = counts[i] == Statement.SUCCESS_NO_INFO ? 1 : counts[i];
+
+                this.checkVersion(count, rows.get(i).get(columnId));
+
+                total += Math.max(count, 0);
+
+                this.changed(rows.get(i).get(columnId), count, columns);
+            }
         }
 
-        return id;
+        return total;
+    }
+
+    /**
+     * Operação do SQL criado
+     *
+     * @return String Update.INSERT | Update.UPDATE | Update.DELETE |
+     * Update.UPSERT
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Tabela alvo
+     *
+     * @return String
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * SQL com parâmetros '?' para os dados
+     */
+    private Plan getPlan(Map<String, Object> values) throws DatabaseException {
+
+        if (!partial) {
+
+            if (sql == null) {
+                throw new DatabaseException("SQL não criado: use createInsertSQL, createUpdateSQL, createPartialUpdateSQL, createDeleteSQL ou createUpsertSQL.");
+            }
+
+            if (plan == null) {
+                plan = Plan.parse(sql.toString());
+            }
+
+            return plan;
+        }
+
+        String columnId = Metadata.getPrimaryKeyName(table);
+        List<String> columns = new ArrayList();
+
+        for (String column : Metadata.requireTable(table).getColumnNames()) {
+            if (!column.equals(columnId) && !column.equals(versionColumn) && values.containsKey(column)) {
+                columns.add(column);
+            }
+        }
+
+        if (columns.isEmpty() && versionColumn == null) {
+            throw new DatabaseException("Nenhuma coluna para alterar na tabela '" + table + "'.");
+        }
+
+        // Sem a versão, 'versao = NULL' não encontra o registro e pareceria conflito
+        if (versionColumn != null && values.get(versionColumn) == null) {
+            throw new DatabaseException("Versão não informada: coluna '" + versionColumn + "' do registro " + values.get(columnId) + " da tabela '" + table + "'.");
+        }
+
+        String key = String.join(",", columns);
+        Plan partialPlan = plans.get(key);
+
+        if (partialPlan == null) {
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("UPDATE ").append(table).append(" SET ");
+            sb.append(columns.stream().map(c -> c + " = :" + c).collect(Collectors.joining(", ")));
+
+            if (versionColumn != null) {
+                sb.append(columns.isEmpty() ? "" : ", ").append(versionColumn).append(" = ").append(versionColumn).append(" + 1");
+            }
+
+            sb.append(" WHERE ").append(columnId).append(" = :").append(columnId);
+
+            if (versionColumn != null) {
+                sb.append(" AND ").append(versionColumn).append(" = :").append(versionColumn);
+            }
+
+            partialPlan = Plan.parse(sb.toString());
+            plans.put(key, partialPlan);
+        }
+
+        return partialPlan;
+    }
+
+    /**
+     * Instrução preparada do SQL, reaproveitada enquanto o <i>Update</i>
+     * estiver aberto
+     */
+    private PreparedStatement getStatement(Plan current, boolean generatedKeys) throws SQLException {
+
+        String key = generatedKeys ? "#" + current.sql : current.sql;
+        PreparedStatement ps = statements.get(key);
+
+        if (ps == null) {
+            ps = generatedKeys ? connection.prepareStatement(current.sql, Statement.RETURN_GENERATED_KEYS) : connection.prepareStatement(current.sql);
+            statements.put(key, ps);
+        }
+
+        return ps;
+    }
+
+    /**
+     * ID da inclusão pelo <i>IdAllocator</i>, se a tabela reserva IDs em bloco
+     * e o ID não veio nos dados
+     */
+    private boolean allocate(Map<String, Object> values) throws DatabaseException {
+
+        String columnId = Metadata.getPrimaryKeyName(table);
+
+        if (values.get(columnId) != null || !IdAllocator.isEnabled(table)) {
+            return false;
+        }
+
+        values.put(columnId, IdAllocator.next(table));
+
+        return true;
+    }
+
+    private void checkVersion(int rows, Object key) throws DatabaseException {
+        if (partial && versionColumn != null && rows == 0) {
+            throw new DatabaseException("Registro " + key + " da tabela '" + table + "' foi alterado ou apagado por outro usuário.");
+        }
+    }
+
+    private static Map<String, Object> normalize(Map<String, Object> data) {
+
+        Map<String, Object> values = new HashMap();
+
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            values.put(entry.getKey().toLowerCase().trim(), entry.getValue());
+        }
+
+        return values;
+    }
+
+    /**
+     * Avisa a gravação: na transação, só depois do <i>commit</i>
+     */
+    private void changed(Object id, int rows, Set<String> columns) {
+
+        if (transaction == null) {
+            Update.changed(table, operation, id, rows, columns);
+        } else {
+            transaction.changed(table, operation, id, rows, columns);
+        }
+    }
+
+    /**
+     * Chamado depois que a alteração foi gravada no banco de dados, para
+     * descartar os dados em cache do registro, atualizar o índice de pesquisa
+     * e os totais e publicar o evento no <i>ChangeBus</i>
+     *
+     * @param table Tabela alterada
+     * @param operation Update.INSERT | Update.UPDATE | Update.DELETE |
+     * Update.UPSERT
+     * @param id Chave primária do registro ou NULL se desconhecida
+     * @param rows Registros afetados
+     * @param columns Colunas gravadas
+     */
+    static void changed(String table, String operation, Object id, int rows, Set<String> columns) {
+
+        if (rows <= 0) {
+            return;
+        }
+
+        Replicas.written();
+
+        if (!Update.INSERT.equals(operation)) {
+            if (id == null) {
+                EntityCache.invalidate(table);
+            } else {
+                EntityCache.invalidate(table, id);
+            }
+        }
+
+        SearchIndex.changed(table, operation, id);
+        Count.changed(table, operation, rows);
+
+        ChangeBus.publish(new ChangeEvent(table, operation, id, columns));
     }
 
     @Override
     public void close() throws Exception {
-        if (connection != null) {
+
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (SQLException ex) {
+                // Conexão já fechada
+            }
+        }
+
+        statements.clear();
+
+        if (connection != null && transaction == null) {
             try {
                 connection.close();
             } catch (SQLException ex) {
@@ -211,4 +700,62 @@ public class Update implements AutoCloseable {
             }
         }
     }
+
+    /**
+     * SQL com os parâmetros ':coluna' trocados por '?'
+     */
+    private static final class Plan {
+
+        private final String sql;
+        private final List<String> parameters;
+
+        private volatile Set<String> columns;
+
+        private Plan(String sql, List<String> parameters) {
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+
+        private static Plan parse(String sql) {
+
+            Matcher matcher = PARAMETER.matcher(sql);
+            StringBuffer sb = new StringBuffer();
+            List<String> names = new ArrayList();
+
+            while (matcher.find()) {
+                names.add(matcher.group(1).toLowerCase());
+                matcher.appendReplacement(sb, "?");
+            }
+
+            matcher.appendTail(sb);
+
+            return new Plan(sb.toString(), names);
+        }
+
+        /**
+         * Colunas gravadas pelo SQL, sem a chave primária
+         */
+        private Set<String> columns(String columnId) {
+
+            if (columns == null) {
+
+                Set<String> set = new LinkedHashSet(parameters);
+                set.remove(columnId);
+
+                columns = Collections.unmodifiableSet(set);
+            }
+
+            return columns;
+        }
+
+        private void bind(PreparedStatement ps, TableMeta meta, Map<String, Object> values) throws DatabaseException {
+
+            for (int i = 0; i < parameters.size(); i++) {
+
+                ColumnMeta column = meta.getColumn(parameters.get(i));
+
+                DataType.setValue(ps, i + 1, values.get(parameters.get(i)), column == null ? Types.OTHER : column.getDataType());
+            }
+        }
+    }
 }
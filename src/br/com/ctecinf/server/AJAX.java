@@ -29,9 +29,14 @@ public class AJAX {
     public static final String PARAM_NAME_LIMIT = "limit";
     public static final String PARAM_NAME_OFFSET = "offset";
     public static final String PARAM_NAME_TERM = "term";
+    public static final String PARAM_NAME_COLUMNS = "columns";
+    public static final String PARAM_NAME_FORMAT = "format";
+    public static final String PARAM_NAME_TOTAL = "total";
     public static final String PARAM_NAME_ID = "id";
     public static final String PARAM_NAME_DATA_ARRAY = "data";
     public static final String PARAM_VALUE_QUERY = "query";
     public static final String PARAM_VALUE_SAVE = "save";
     public static final String PARAM_VALUE_DELETE = "delete";
+    public static final String PARAM_VALUE_CSV = "csv";
+    public static final String PARAM_VALUE_NDJSON = "ndjson";
 }
@@ -16,13 +16,25 @@
  */
 package br.com.ctecinf.server;
 
+import br.com.ctecinf.database.Async;
 import br.com.ctecinf.database.Clause;
+import br.com.ctecinf.database.Count;
+import br.com.ctecinf.database.DatabaseException;
 import br.com.ctecinf.database.Metadata;
 import br.com.ctecinf.database.Query;
-import java.sql.ResultSet;
+import br.com.ctecinf.database.SearchIndex;
+import br.com.ctecinf.json.JSONArray;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
+ * Consulta paginada: /controller?action=query&amp;table=...&amp;term=...<br>
+ * O total de registros só é calculado com o parâmetro 'total=true' (na
+ * primeira página, por exemplo): com filtro, a contagem percorre a tabela a
+ * cada busca.
  *
  * @author Cássio Conceição
  * @version 2021
@@ -30,6 +42,11 @@ import java.util.Map;
  */
 public class Controller extends Handler {
 
+    /**
+     * Prazo das consultas em milissegundos
+     */
+    private static final long TIMEOUT = 30000;
+
     public Controller() {
         super("controller", Handler.TYPE_JSON);
     }
@@ -42,21 +59,72 @@ public class Controller extends Handler {
         String term = requestParams.get(AJAX.PARAM_NAME_TERM) == null ? "" : (String) requestParams.get(AJAX.PARAM_NAME_TERM);
         Integer offset = requestParams.get(AJAX.PARAM_NAME_OFFSET) == null ? 0 : Integer.parseInt(requestParams.get(AJAX.PARAM_NAME_OFFSET).toString());
         Integer limit = requestParams.get(AJAX.PARAM_NAME_LIMIT) == null ? 100 : Integer.parseInt(requestParams.get(AJAX.PARAM_NAME_LIMIT).toString());
+        String[] columns = requestParams.get(AJAX.PARAM_NAME_COLUMNS) == null ? null : requestParams.get(AJAX.PARAM_NAME_COLUMNS).toString().split(",");
+        boolean withTotal = "true".equals(String.valueOf(requestParams.get(AJAX.PARAM_NAME_TOTAL)));
 
         switch (action) {
 
             case AJAX.PARAM_VALUE_QUERY:
 
-                try (Query query = new Query(table, Clause.create(table).like(term)).setLimit(offset, limit); ResultSet rs = query.getResultSet()) {
+                CompletableFuture<JSONArray> data = null;
+                CompletableFuture<Integer> total = null;
+
+                try {
+
+                    // Índice em memória: busca só as chaves encontradas, na ordem de
+                    // relevância (todas somente se o total foi pedido)
+                    List<Object> keys = term.isEmpty() ? null : SearchIndex.search(table, term, withTotal ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, (long) offset + limit));
+
+                    if (keys == null) {
+
+                        Clause clause = Clause.create(table).like(term);
+
+                        // Registros e total em paralelo
+                        data = Async.submit(() -> {
+                            try (Query query = new Query(table, clause).select(columns).setLimit(offset, limit)) {
+                                return query.getJSONData();
+                            }
+                        }, TIMEOUT);
+
+                        if (withTotal) {
+                            total = Async.submit(() -> {
+                                try (Count count = new Count(table, clause).setMode(Count.CACHED)) {
+                                    return count.getTotal();
+                                }
+                            }, TIMEOUT);
+                        }
+
+                    } else {
+
+                        List<Object> page = keys.subList(Math.min(offset, keys.size()), Math.min(offset + limit, keys.size()));
+
+                        data = page.isEmpty() ? CompletableFuture.completedFuture(new JSONArray()) : Async.submit(() -> Controller.fetch(table, page, columns), TIMEOUT);
+                        total = withTotal ? CompletableFuture.completedFuture(keys.size()) : null;
+                    }
 
                     StringBuilder json = new StringBuilder();
                     json.append("{\"primary_key\": \"").append(Metadata.getPrimaryKeyName(table)).append("\", ");
                     json.append("\"columns\": ").append(Metadata.getColumns(table)).append(",");
-                    json.append("\"data\": ").append(query.getJSONData()).append("}");
+
+                    if (total != null) {
+                        json.append("\"total\": ").append(total.get()).append(",");
+                    }
+
+                    json.append("\"data\": ").append(data.get()).append("}");
 
                     return json.toString().getBytes();
 
-                } catch (Exception ex) {
+                } catch (Exception error) {
+
+                    if (data != null) {
+                        data.cancel(true);
+                    }
+
+                    if (total != null) {
+                        total.cancel(true);
+                    }
+
+                    Throwable ex = error instanceof ExecutionException && error.getCause() != null ? error.getCause() : error;
 
                     StringBuilder sb = new StringBuilder();
                     sb.append("Exception: ").append(ex.getMessage()).append("\\n");
@@ -85,9 +153,45 @@ public class Controller extends Handler {
         }
     }
 
+    /**
+     * Registros pelas chaves primárias, na ordem das chaves
+     *
+     * @param table
+     * @param keys
+     * @param columns Colunas ou NULL para todas
+     * @return JSONArray
+     * @throws DatabaseException
+     */
+    private static JSONArray fetch(String table, List<Object> keys, String[] columns) throws DatabaseException {
+
+        Map<String, Integer> order = new HashMap();
+        Object[] values = new Object[keys.size()];
+
+        for (int i = 0; i < keys.size(); i++) {
+
+            Object key = keys.get(i);
+
+            order.put(key.toString(), i);
+            values[i] = key instanceof Number ? key : "'" + key.toString().replace("'", "''") + "'";
+        }
+
+        JSONArray data;
+
+        try (Query query = new Query(table, Clause.create(table).in(Metadata.getPrimaryKeyName(table), values)).select(columns)) {
+            data = query.getJSONData();
+        }
+
+        data.sort((a, b) -> Integer.compare(order.getOrDefault(String.valueOf(a.get("value")), 0), order.getOrDefault(String.valueOf(b.get("value")), 0)));
+
+        return data;
+    }
+
     public static void main(String[] args) throws Exception {
         Server server = new Server();
         server.addContext(new Controller());
+        server.addContext(new Export());
+        server.addContext(new Events());
+        server.addContext(new Stats());
         server.start();
     }
 
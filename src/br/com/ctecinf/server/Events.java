@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.server;
+
+import br.com.ctecinf.database.ChangeBus;
+import br.com.ctecinf.database.ChangeEvent;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Avisos das gravações por <i>Server-Sent Events</i>, no lugar de consultar o
+ * <i>Controller</i> periodicamente:<br>
+ * /events?table=produto ou /events?table=produto&amp;id=10<br>
+ * Cada aviso tem o número do evento: ao reconectar, o navegador envia
+ * <i>Last-Event-ID</i> e recebe os avisos perdidos (dos últimos 1024). Se
+ * forem mais antigos, recebe o evento 'reset' (recarregar tudo). Os números
+ * são dados aqui, na ordem em que os avisos chegam. Se o <i>ChangeBus</i>
+ * descartar avisos (fila cheia), todos os clientes recebem 'reset' e a
+ * numeração recomeça.<br>
+ * As conexões não prendem threads: os avisos são escritos por poucas threads
+ * compartilhadas. Cliente que não lê os avisos a tempo, ou com a escrita
+ * parada há mais de 30 segundos, é desconectado (e retoma pelo
+ * <i>Last-Event-ID</i>).
+ *
+ * <pre>
+ * var source = new EventSource("/events?table=produto");
+ * source.addEventListener("change", (e) =&gt; console.log(JSON.parse(e.data)));
+ * </pre>
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br
+ */
+public class Events extends Handler {
+
+    private static final int HISTORY = 1024;
+    private static final int BUFFER = 256;
+    private static final int THREADS = 4;
+    private static final int MAX_STUCK = 64;
+    private static final long HEARTBEAT = 15;
+    private static final long WRITE_TIMEOUT = 30000;
+    private static final long RETRY = 3000;
+    private static final String RESET = "event: reset\ndata: {}\n\n";
+
+    private final Map<String, Set<Connection>> connections = new ConcurrentHashMap();
+    private final ChangeEvent[] history = new ChangeEvent[HISTORY];
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * Conexões com escrita em andamento
+     */
+    private final Set<Connection> writing = ConcurrentHashMap.newKeySet();
+
+    private final ThreadPoolExecutor writer = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue(), (Runnable r) -> {
+        Thread thread = new Thread(r, "events-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+        Thread thread = new Thread(r, "events-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile ChangeBus.Subscription subscription;
+
+    /**
+     * Inscrição atual: avisos de inscrições anteriores são ignorados
+     */
+    private int epoch;
+
+    /**
+     * Número do evento: <i>base</i> + posição no histórico + 1
+     */
+    private long base;
+    private long last;
+
+    public Events() {
+
+        super("events", "text/event-stream");
+
+        this.subscribe();
+
+        timer.scheduleAtFixedRate(this::heartbeat, HEARTBEAT, HEARTBEAT, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected byte[] getResponse(Map<String, Object> requestParams) throws Exception {
+        return "{\"message\": \"Parâmetro 'table' inválido.\", \"type\": \"error\"}".getBytes();
+    }
+
+    @Override
+    protected void respond(HttpExchange he, Map<String, Object> requestParams) throws Exception {
+
+        Object table = requestParams == null ? null : requestParams.get(AJAX.PARAM_NAME_TABLE);
+
+        if (table == null) {
+            super.respond(he, requestParams);
+            return;
+        }
+
+        Object id = requestParams.get(AJAX.PARAM_NAME_ID);
+
+        he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        he.getResponseHeaders().set("Content-Type", getContentType() + "; charset=UTF-8");
+        he.getResponseHeaders().set("Cache-Control", "no-cache");
+        he.sendResponseHeaders(200, 0);
+
+        Connection connection = new Connection(he, table.toString().toLowerCase().trim(), id == null ? null : id.toString());
+
+        connection.send("retry: " + RETRY + "\n\n");
+
+        String lastEventId = he.getRequestHeaders().getFirst("Last-Event-ID");
+
+        // Histórico e registro juntos: nenhum aviso perdido ou repetido
+        synchronized (history) {
+
+            if (lastEventId != null && !lastEventId.trim().isEmpty()) {
+                try {
+                    this.replay(connection, Long.parseLong(lastEventId.trim()));
+                } catch (NumberFormatException ex) {
+                    connection.send(this.reset());
+                }
+            }
+
+            connections.computeIfAbsent(connection.table, (k) -> ConcurrentHashMap.newKeySet()).add(connection);
+        }
+    }
+
+    /**
+     * Inscreve no <i>ChangeBus</i> cancelando na fila cheia: um aviso
+     * descartado não pode ser recuperado pelo <i>Last-Event-ID</i>. Recomeça
+     * a numeração e envia 'reset' para todas as conexões.
+     */
+    private void subscribe() {
+
+        synchronized (history) {
+
+            int current = ++epoch;
+
+            subscription = ChangeBus.subscribe(null, (event) -> this.publish(event, current), HISTORY, ChangeBus.CANCEL);
+
+            // Sempre maior que os números já enviados
+            base = Math.max(System.currentTimeMillis() * 1000, base + last + 1);
+            last = 0;
+            Arrays.fill(history, null);
+
+            for (Set<Connection> set : connections.values()) {
+                for (Connection connection : set) {
+                    connection.send(this.reset());
+                }
+            }
+        }
+    }
+
+    /**
+     * Numera o evento, guarda no histórico e envia para as conexões da tabela
+     */
+    private void publish(ChangeEvent event, int current) {
+
+        synchronized (history) {
+
+            if (current != epoch) {
+                return;
+            }
+
+            long id = base + last + 1;
+
+            history[(int) (last++ % HISTORY)] = event;
+
+            Set<Connection> set = connections.get(event.getTable());
+
+            if (set == null) {
+                return;
+            }
+
+            String message = Events.format(id, event);
+
+            // Só coloca na fila da conexão, não espera a escrita
+            for (Connection connection : set) {
+                if (connection.accepts(event)) {
+                    connection.send(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Envia os avisos perdidos desde o evento informado (com o histórico
+     * bloqueado)
+     */
+    private void replay(Connection connection, long lastEventId) {
+
+        long first = Math.max(0, last - HISTORY);
+
+        // Posição do primeiro evento não recebido
+        long next = lastEventId - base;
+
+        // Numeração anterior (servidor reiniciado ou avisos descartados) ou
+        // histórico já sem os eventos posteriores ao último recebido
+        if (next < first || next > last) {
+            connection.send(this.reset());
+            return;
+        }
+
+        List<String> messages = new ArrayList();
+
+        for (long i = next; i < last; i++) {
+
+            ChangeEvent event = history[(int) (i % HISTORY)];
+
+            if (connection.accepts(event)) {
+                messages.add(Events.format(base + i + 1, event));
+            }
+        }
+
+        // Mais avisos do que cabem na fila da conexão
+        if (messages.size() >= BUFFER / 2) {
+            connection.send(this.reset());
+            return;
+        }
+
+        for (String message : messages) {
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Refaz a inscrição cancelada por fila cheia, envia o aviso de conexão
+     * ativa e fecha as conexões presas na escrita (cliente parado com a janela
+     * TCP cheia). Cada thread presa ganha uma substituta até a escrita falhar,
+     * para os demais clientes continuarem recebendo.
+     */
+    private void heartbeat() {
+
+        // Fila cheia no ChangeBus: avisos perdidos
+        if (subscription.isCancelled()) {
+            System.err.println("Events: " + subscription.getDropped() + " avisos descartados, enviando 'reset'.");
+            this.subscribe();
+        }
+
+        long now = System.currentTimeMillis();
+        int stuck = 0;
+
+        for (Connection connection : writing) {
+
+            long started = connection.started;
+
+            if (started > 0 && now - started > WRITE_TIMEOUT) {
+                stuck++;
+                connection.close();
+            }
+        }
+
+        int size = THREADS + Math.min(stuck, MAX_STUCK);
+
+        if (size > writer.getMaximumPoolSize()) {
+            writer.setMaximumPoolSize(size);
+            writer.setCorePoolSize(size);
+        } else if (size < writer.getMaximumPoolSize()) {
+            writer.setCorePoolSize(size);
+            writer.setMaximumPoolSize(size);
+        }
+
+        for (Set<Connection> set : connections.values()) {
+            for (Connection connection : set) {
+                connection.send(": ping\n\n");
+            }
+        }
+    }
+
+    /**
+     * Evento 'reset' com o número atual: depois de recarregar, o cliente
+     * retoma a partir dele (com o histórico bloqueado)
+     */
+    private String reset() {
+        return "id: " + (base + last) + "\n" + RESET;
+    }
+
+    private static String format(long id, ChangeEvent event) {
+        return "id: " + id + "\nevent: change\ndata: " + event + "\n\n";
+    }
+
+    /**
+     * Conexão de um cliente
+     */
+    private final class Connection {
+
+        private final HttpExchange he;
+        private final OutputStream os;
+        private final String table;
+        private final String id;
+
+        private final ArrayDeque<String> pending = new ArrayDeque();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /**
+         * Início da escrita em andamento (0 sem escrita)
+         */
+        private volatile long started;
+
+        private Connection(HttpExchange he, String table, String id) {
+            this.he = he;
+            this.os = he.getResponseBody();
+            this.table = table;
+            this.id = id;
+        }
+
+        private boolean accepts(ChangeEvent event) {
+            return id == null || event.getId() == null || id.equals(event.getId().toString());
+        }
+
+        private void send(String message) {
+
+            if (closed.get()) {
+                return;
+            }
+
+            synchronized (pending) {
+
+                // Cliente não acompanha os avisos: desconecta
+                if (pending.size() >= BUFFER) {
+                    this.close();
+                    return;
+                }
+
+                pending.add(message);
+            }
+
+            if (scheduled.compareAndSet(false, true)) {
+                writer.execute(this::write);
+            }
+        }
+
+        private void write() {
+
+            writing.add(this);
+
+            try {
+
+                while (!closed.get()) {
+
+                    String message;
+
+                    synchronized (pending) {
+                        message = pending.poll();
+                    }
+
+                    if (message == null) {
+                        break;
+                    }
+
+                    started = System.currentTimeMillis();
+                    os.write(message.getBytes(StandardCharsets.UTF_8));
+                }
+
+                started = System.currentTimeMillis();
+                os.flush();
+
+            } catch (IOException ex) {
+                this.close();
+            } finally {
+                started = 0;
+                writing.remove(this);
+                scheduled.set(false);
+            }
+
+            boolean more;
+
+            synchronized (pending) {
+                more = !pending.isEmpty();
+            }
+
+            if (more && !closed.get() && scheduled.compareAndSet(false, true)) {
+                writer.execute(this::write);
+            }
+        }
+
+        private void close() {
+
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+
+            Set<Connection> set = connections.get(table);
+
+            if (set != null) {
+                set.remove(this);
+            }
+
+            synchronized (pending) {
+                pending.clear();
+            }
+
+            // Fechar escreve o fim da resposta: fora de quem publica. Na
+            // conexão presa, fechar interrompe a escrita pendente.
+            writer.execute(he::close);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.server;
+
+import br.com.ctecinf.database.Clause;
+import br.com.ctecinf.database.DatabaseException;
+import br.com.ctecinf.database.Query;
+import br.com.ctecinf.json.JSONObject;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exportação da tabela inteira em uma única consulta, enviada em partes
+ * (<i>chunked</i>) conforme os registros são lidos:<br>
+ * /export?table=venda&amp;format=csv&amp;term=...&amp;columns=...<br>
+ * <i>format</i>: 'csv' (padrão, separado por ';') ou 'ndjson' (um JSON por
+ * linha). Compacta em gzip quando o cliente aceita.<br>
+ * A memória usada não depende do tamanho da tabela: o cursor avança
+ * (<i>setFetchSize</i>) na velocidade em que o cliente lê a resposta. As
+ * exportações rodam em threads próprias (até 4, mais 16 na fila), fora da
+ * thread do servidor.
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br
+ */
+public class Export extends Handler {
+
+    private static final int FETCH_SIZE = 1000;
+    private static final int BUFFER_SIZE = 65536;
+    private static final char SEPARATOR = ';';
+    private static final int THREADS = 4;
+    private static final int QUEUE = 16;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /**
+     * Exportações simultâneas (as demais esperam na fila)
+     */
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue(QUEUE), (Runnable r) -> {
+        Thread thread = new Thread(r, "export-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    public Export() {
+        super("export", Handler.TYPE_PLAIN);
+    }
+
+    @Override
+    protected byte[] getResponse(Map<String, Object> requestParams) throws Exception {
+        return "{\"message\": \"Parâmetro 'table' inválido.\", \"type\": \"error\"}".getBytes();
+    }
+
+    @Override
+    protected void respond(HttpExchange he, Map<String, Object> requestParams) throws Exception {
+
+        Object table = requestParams == null ? null : requestParams.get(AJAX.PARAM_NAME_TABLE);
+
+        if (table == null) {
+            super.respond(he, requestParams);
+            return;
+        }
+
+        // Fora da thread do servidor: um download lento não trava as outras requisições
+        try {
+            EXECUTOR.execute(() -> this.export(he, requestParams, table.toString()));
+        } catch (RejectedExecutionException ex) {
+            Export.error(he, 503, "Muitas exportações em andamento. Tente novamente mais tarde.");
+        }
+    }
+
+    private void export(HttpExchange he, Map<String, Object> requestParams, String table) {
+
+        Object term = requestParams.get(AJAX.PARAM_NAME_TERM);
+        Object columns = requestParams.get(AJAX.PARAM_NAME_COLUMNS);
+        boolean ndjson = AJAX.PARAM_VALUE_NDJSON.equals(String.valueOf(requestParams.get(AJAX.PARAM_NAME_FORMAT)));
+
+        String encoding = he.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = encoding != null && encoding.toLowerCase().contains("gzip");
+
+        Sink sink = new Sink(he, table, ndjson, gzip);
+
+        try (Query query = new Query(table, Clause.create(table).like(term == null ? "" : term.toString()))) {
+
+            query.select(columns == null ? null : columns.toString().split(",")).setForwardOnly(true).setFetchSize(FETCH_SIZE);
+            query.forEach(sink::write);
+
+            sink.close();
+
+        } catch (Exception ex) {
+
+            // Resposta já iniciada: só resta interromper
+            if (sink.writer != null) {
+
+                he.close();
+
+                // Cliente cancelou o download
+                if (!(ex instanceof IOException || ex.getCause() instanceof IOException)) {
+                    System.err.println("Export: " + ex);
+                }
+
+                return;
+            }
+
+            Export.error(he, 500, String.valueOf(ex.getMessage()));
+        }
+    }
+
+    private static void error(HttpExchange he, int status, String message) {
+
+        byte[] response = ("{\"message\": \"" + Export.escape(message) + "\", \"type\": \"exception\"}").getBytes(StandardCharsets.UTF_8);
+
+        try {
+
+            he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            he.getResponseHeaders().set("Content-Type", Handler.TYPE_JSON + "; charset=UTF-8");
+            he.sendResponseHeaders(status, response.length);
+
+            try (OutputStream os = he.getResponseBody()) {
+                os.write(response);
+            }
+
+        } catch (IOException ex) {
+            // Cliente desconectou
+            he.close();
+        }
+    }
+
+    /**
+     * Texto para valor JSON
+     *
+     * @param value
+     * @return String
+     */
+    static String escape(String value) {
+
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+
+        for (int i = 0; i < value.length(); i++) {
+
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Resposta da exportação. O cabeçalho HTTP é enviado no primeiro registro,
+     * para que erros da consulta ainda possam ser respondidos como erro.
+     */
+    private static final class Sink {
+
+        private final HttpExchange he;
+        private final String table;
+        private final boolean ndjson;
+        private final boolean gzip;
+
+        private Writer writer;
+        private List<String> header;
+
+        private Sink(HttpExchange he, String table, boolean ndjson, boolean gzip) {
+            this.he = he;
+            this.table = table;
+            this.ndjson = ndjson;
+            this.gzip = gzip;
+        }
+
+        private void write(JSONObject row) throws DatabaseException {
+            try {
+
+                if (writer == null) {
+                    this.open();
+                }
+
+                if (ndjson) {
+                    this.writeJSON(row);
+                    writer.write('\n');
+                } else {
+                    this.writeCSV(row);
+                }
+
+            } catch (IOException ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+
+        private void open() throws IOException {
+
+            he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            he.getResponseHeaders().set("Content-Type", (ndjson ? "application/x-ndjson" : "text/csv") + "; charset=UTF-8");
+            he.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + table + (ndjson ? ".ndjson" : ".csv") + "\"");
+
+            if (gzip) {
+                he.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+
+            // Tamanho 0: resposta em partes (chunked)
+            he.sendResponseHeaders(200, 0);
+
+            OutputStream os = gzip ? new GZIPOutputStream(he.getResponseBody(), BUFFER_SIZE) : he.getResponseBody();
+
+            writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+
+        private void writeJSON(JSONObject row) throws IOException {
+
+            writer.write('{');
+
+            boolean first = true;
+
+            for (Map.Entry<String, Object> entry : row.entrySet()) {
+
+                if (!first) {
+                    writer.write(',');
+                }
+
+                first = false;
+
+                writer.write('"');
+                writer.write(Export.escape(entry.getKey()));
+                writer.write("\":");
+
+                Object value = entry.getValue();
+
+                if (value instanceof JSONObject) {
+                    this.writeJSON((JSONObject) value);
+                } else if (value == null) {
+                    writer.write("null");
+                } else if (value instanceof Number || value instanceof Boolean) {
+                    writer.write(value.toString());
+                } else {
+                    writer.write('"');
+                    writer.write(Export.escape(value.toString()));
+                    writer.write('"');
+                }
+            }
+
+            writer.write('}');
+        }
+
+        private void writeCSV(JSONObject row) throws IOException {
+
+            List<Object> values = new ArrayList();
+
+            if (header == null) {
+
+                header = new ArrayList();
+
+                Sink.flatten(row, "", header, values);
+
+                this.writeLine(new ArrayList(header));
+
+            } else {
+                Sink.flatten(row, "", null, values);
+            }
+
+            this.writeLine(values);
+        }
+
+        /**
+         * Referências viram colunas 'tabela.coluna'
+         */
+        private static void flatten(JSONObject row, String prefix, List<String> names, List<Object> values) {
+
+            for (Map.Entry<String, Object> entry : row.entrySet()) {
+
+                if (entry.getValue() instanceof JSONObject) {
+                    Sink.flatten((JSONObject) entry.getValue(), prefix + entry.getKey() + ".", names, values);
+                    continue;
+                }
+
+                if (names != null) {
+                    names.add(prefix + entry.getKey());
+                }
+
+                values.add(entry.getValue());
+            }
+        }
+
+        private void writeLine(List<?> values) throws IOException {
+
+            for (int i = 0; i < values.size(); i++) {
+
+                if (i > 0) {
+                    writer.write(SEPARATOR);
+                }
+
+                Object value = values.get(i);
+
+                if (value == null) {
+                    continue;
+                }
+
+                String text = value.toString();
+
+                if (text.indexOf(SEPARATOR) >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+                    writer.write('"');
+                    writer.write(text.replace("\"", "\"\""));
+                    writer.write('"');
+                } else {
+                    writer.write(text);
+                }
+            }
+
+            writer.write("\r\n");
+        }
+
+        private void close() throws IOException {
+
+            // Sem registros: resposta vazia
+            if (writer == null) {
+                this.open();
+            }
+
+            writer.close();
+        }
+    }
+}
@@ -139,19 +139,31 @@ public abstract class Handler implements HttpHandler {
         }
 
         try {
+            respond(he, params);
+        } catch (Exception ex) {
+            JOptionPane.showMessageDialog(null, ex, "Exception", JOptionPane.ERROR_MESSAGE);
+        }
+    }
 
-            byte[] response = getResponse(params);
+    /**
+     * Envia a resposta da requisição. Por padrão, envia o retorno de
+     * <i>getResponse</i> de uma vez; sobrescrever para enviar a resposta em
+     * partes (ex. exportação).
+     *
+     * @param he
+     * @param requestParams Parâmetros da requisição
+     * @throws Exception
+     */
+    protected void respond(HttpExchange he, Map<String, Object> requestParams) throws Exception {
 
-            he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-            he.getResponseHeaders().set("Content-Type", getContentType() + "; charset=UTF-8");
-            he.sendResponseHeaders(200, response.length);
+        byte[] response = getResponse(requestParams);
 
-            try (OutputStream os = he.getResponseBody()) {
-                os.write(response, 0, response.length);
-            }
+        he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        he.getResponseHeaders().set("Content-Type", getContentType() + "; charset=UTF-8");
+        he.sendResponseHeaders(200, response.length);
 
-        } catch (Exception ex) {
-            JOptionPane.showMessageDialog(null, ex, "Exception", JOptionPane.ERROR_MESSAGE);
+        try (OutputStream os = he.getResponseBody()) {
+            os.write(response, 0, response.length);
         }
     }
 
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2021 ctecinf.com.br
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.ctecinf.server;
+
+import br.com.ctecinf.database.QueryStats;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Administração: instruções SQL com maior tempo total e últimas instruções
+ * lentas (<i>QueryStats</i>)<br>
+ * /stats?limit=20 ou /stats?action=clear
+ *
+ * @author Cássio Conceição
+ * @version 2021
+ * @see http://ctecinf.com.br
+ */
+public class Stats extends Handler {
+
+    public Stats() {
+        super("stats", Handler.TYPE_JSON);
+    }
+
+    @Override
+    protected byte[] getResponse(Map<String, Object> requestParams) throws Exception {
+
+        Object action = requestParams == null ? null : requestParams.get(AJAX.PARAM_NAME_ACTION);
+        Object limit = requestParams == null ? null : requestParams.get(AJAX.PARAM_NAME_LIMIT);
+
+        if ("clear".equals(action)) {
+            QueryStats.clear();
+            return "{\"message\": \"Estatísticas descartadas.\", \"type\": \"success\"}".getBytes(StandardCharsets.UTF_8);
+        }
+
+        StringBuilder json = new StringBuilder("{\"shapes\": [");
+
+        List<QueryStats.Shape> shapes = QueryStats.top(limit == null ? 20 : Integer.parseInt(limit.toString()));
+
+        for (int i = 0; i < shapes.size(); i++) {
+
+            QueryStats.Shape shape = shapes.get(i);
+
+            json.append(i > 0 ? ", " : "");
+            json.append("{\"sql\": \"").append(Export.escape(shape.getSql())).append("\"");
+            json.append(", \"count\": ").append(shape.getCount());
+            json.append(", \"total_ms\": ").append(String.format(Locale.ROOT, "%.3f", shape.getTotalTime()));
+            json.append(", \"avg_ms\": ").append(String.format(Locale.ROOT, "%.3f", shape.getAverageTime()));
+            json.append(", \"max_ms\": ").append(String.format(Locale.ROOT, "%.3f", shape.getMaxTime()));
+            json.append(", \"p99_ms\": ").append(String.format(Locale.ROOT, "%.3f", shape.getP99Time()));
+            json.append(", \"mapping_ms\": ").append(String.format(Locale.ROOT, "%.3f", shape.getMappingTime()));
+            json.append(", \"rows\": ").append(shape.getRows()).append("}");
+        }
+
+        json.append("], \"slow\": [");
+
+        List<QueryStats.SlowQuery> slow = QueryStats.getSlowQueries();
+
+        for (int i = 0; i < slow.size(); i++) {
+
+            QueryStats.SlowQuery query = slow.get(i);
+
+            json.append(i > 0 ? ", " : "");
+            json.append("{\"time\": ").append(query.getTime());
+            json.append(", \"ms\": ").append(query.getElapsed());
+            json.append(", \"phase\": \"").append(Export.escape(query.getPhase())).append("\"");
+            json.append(", \"sql\": \"").append(Export.escape(query.getSql())).append("\"}");
+        }
+
+        json.append("]}");
+
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}